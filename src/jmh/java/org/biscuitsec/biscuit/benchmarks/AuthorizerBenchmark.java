@@ -0,0 +1,80 @@
+package org.biscuitsec.biscuit.benchmarks;
+
+import biscuit.format.schema.Schema.PublicKey.Algorithm;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.biscuitsec.biscuit.crypto.KeyPair;
+import org.biscuitsec.biscuit.datalog.RunLimits;
+import org.biscuitsec.biscuit.error.Error;
+import org.biscuitsec.biscuit.token.Authorizer;
+import org.biscuitsec.biscuit.token.Biscuit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a verified token in an authorizer, and authorizing it
+ *
+ * <p>the token's authority block holds the facts and rules of the shape, and each attenuation
+ * block a check on their result. The authorizer allows the request if the rules produced it too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthorizerBenchmark {
+  @Param({"1", "4", "16"})
+  public int blocks;
+
+  @Param({"10", "100", "1000"})
+  public int facts;
+
+  @Param({"LOOKUP", "TRANSITIVE", "EXPRESSION"})
+  public Fixtures.Shape shape;
+
+  private Biscuit token;
+  private Authorizer preloaded;
+  // the transitive shape needs one iteration per edge
+  private final RunLimits limits =
+      new RunLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Duration.ofSeconds(60));
+
+  @Setup
+  public void setup() throws Error {
+    final KeyPair root = KeyPair.generate(Algorithm.Ed25519);
+    this.token = Fixtures.token(root, this.blocks, this.shape, this.facts);
+    this.preloaded = authorizer();
+  }
+
+  private Authorizer authorizer() throws Error {
+    final Authorizer authorizer = Authorizer.make(this.token);
+    authorizer.addPolicy("allow if " + this.shape.query(this.facts));
+    return authorizer;
+  }
+
+  /** Authorizer.make, which loads the token's blocks with updateOnToken */
+  @Benchmark
+  public Authorizer make() throws Error {
+    return Authorizer.make(this.token);
+  }
+
+  @Benchmark
+  public Long authorize() throws Error {
+    return authorizer().authorize(this.limits);
+  }
+
+  /** Authorizes a clone of an authorizer loaded in the setup, without reloading the token */
+  @Benchmark
+  public Long authorizeClone() throws Error {
+    return this.preloaded.clone().authorize(this.limits);
+  }
+}
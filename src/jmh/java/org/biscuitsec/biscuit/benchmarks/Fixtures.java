@@ -0,0 +1,152 @@
+package org.biscuitsec.biscuit.benchmarks;
+
+import biscuit.format.schema.Schema.PublicKey.Algorithm;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import org.biscuitsec.biscuit.crypto.KeyPair;
+import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.datalog.Origin;
+import org.biscuitsec.biscuit.datalog.SymbolTable;
+import org.biscuitsec.biscuit.datalog.TrustedOrigins;
+import org.biscuitsec.biscuit.datalog.World;
+import org.biscuitsec.biscuit.error.Error;
+import org.biscuitsec.biscuit.token.Biscuit;
+import org.biscuitsec.biscuit.token.builder.Block;
+import org.biscuitsec.biscuit.token.builder.parser.Parser;
+
+/** Tokens, worlds and Datalog code shared by the benchmarks */
+final class Fixtures {
+  // the root key pair of the samples, see src/test/resources/samples/README.md
+  static final String SAMPLES_ROOT_PRIVATE_KEY =
+      "99e87b0e9158531eeeb503ff15266e2b23c2a2507b138c9d1b1f2ab458df2d61";
+
+  /** The shape of the rules evaluated by the benchmarks, and the facts they work on */
+  enum Shape {
+    /** A join on an indexed column: one lookup per resource */
+    LOOKUP,
+    /** A recursive rule, reaching the end of a chain of edges one iteration at a time */
+    TRANSITIVE,
+    /** A rule filtering the facts with an expression */
+    EXPRESSION;
+
+    List<String> facts(int count) {
+      final List<String> facts = new ArrayList<>(count + 1);
+      for (int i = 0; i < count; i++) {
+        switch (this) {
+          case LOOKUP:
+            facts.add("right(\"file" + i + "\", \"read\")");
+            break;
+          case TRANSITIVE:
+            facts.add("edge(" + i + ", " + (i + 1) + ")");
+            break;
+          default:
+            facts.add("value(" + i + ")");
+        }
+      }
+      if (this == LOOKUP) {
+        facts.add("resource(\"file" + count / 2 + "\")");
+      }
+      return facts;
+    }
+
+    List<String> rules() {
+      final List<String> rules = new ArrayList<>();
+      switch (this) {
+        case LOOKUP:
+          rules.add("allowed($r) <- resource($r), right($r, \"read\")");
+          break;
+        case TRANSITIVE:
+          rules.add("reach($y) <- edge(0, $y)");
+          rules.add("reach($z) <- reach($y), edge($y, $z)");
+          break;
+        default:
+          rules.add("big($x) <- value($x), $x >= 0");
+      }
+      return rules;
+    }
+
+    /** The body of a check or policy that succeeds once the rules have run */
+    String query(int count) {
+      switch (this) {
+        case LOOKUP:
+          return "allowed($r)";
+        case TRANSITIVE:
+          return "reach(" + count + ")";
+        default:
+          return "big(" + (count - 1) + ")";
+      }
+    }
+
+    /** The facts and rules as block code */
+    String code(int count) {
+      final StringBuilder code = new StringBuilder();
+      for (String fact : facts(count)) {
+        code.append(fact).append(";\n");
+      }
+      for (String rule : rules()) {
+        code.append(rule).append(";\n");
+      }
+      code.append("check if ").append(query(count)).append(";\n");
+      return code.toString();
+    }
+  }
+
+  private Fixtures() {}
+
+  static PublicKey samplesRootPublicKey() {
+    return KeyPair.generate(Algorithm.Ed25519, SAMPLES_ROOT_PRIVATE_KEY).getPublicKey();
+  }
+
+  /** Reads a token from src/test/resources/samples */
+  static byte[] sample(String filename) throws IOException {
+    try (InputStream in =
+        Thread.currentThread()
+            .getContextClassLoader()
+            .getResourceAsStream("samples/" + filename)) {
+      if (in == null) {
+        throw new IOException("sample not found: " + filename);
+      }
+      return in.readAllBytes();
+    }
+  }
+
+  /**
+   * Creates a token with the facts and rules of the shape in its authority block, and blocks - 1
+   * attenuation blocks, each one with a check on the result of the rules
+   */
+  static Biscuit token(KeyPair root, int blocks, Shape shape, int facts) throws Error {
+    final SecureRandom rng = new SecureRandom();
+    final org.biscuitsec.biscuit.token.builder.Biscuit builder = Biscuit.builder(rng, root);
+    for (String fact : shape.facts(facts)) {
+      builder.addAuthorityFact(fact);
+    }
+    for (String rule : shape.rules()) {
+      builder.addAuthorityRule(rule);
+    }
+    Biscuit token = builder.build();
+    for (int i = 1; i < blocks; i++) {
+      final Block block = new Block();
+      block.addFact("block(" + i + ")");
+      block.addCheck("check if " + shape.query(facts));
+      final KeyPair next = KeyPair.generate(root.getPublicKey().getAlgorithm(), rng);
+      token = token.attenuate(rng, next, block);
+    }
+    return token;
+  }
+
+  /** Creates a world with the facts and rules of the shape, from the authority block */
+  static World world(Shape shape, int facts, SymbolTable symbolTable) {
+    final World world = new World();
+    final TrustedOrigins scope = new TrustedOrigins(0);
+    for (String fact : shape.facts(facts)) {
+      world.addFact(new Origin(0), Parser.fact(fact).get()._2.convert(symbolTable));
+    }
+    for (String rule : shape.rules()) {
+      world.addRule(0L, scope, Parser.rule(rule).get()._2.convert(symbolTable));
+    }
+    return world;
+  }
+}
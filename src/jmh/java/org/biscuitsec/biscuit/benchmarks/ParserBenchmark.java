@@ -0,0 +1,57 @@
+package org.biscuitsec.biscuit.benchmarks;
+
+import io.vavr.Tuple2;
+import io.vavr.control.Either;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.biscuitsec.biscuit.token.builder.Block;
+import org.biscuitsec.biscuit.token.builder.Check;
+import org.biscuitsec.biscuit.token.builder.parser.Error;
+import org.biscuitsec.biscuit.token.builder.parser.Parser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Parsing block code and checks */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+  private static final String CHECK =
+      "check if resource($r), operation(\"read\"), right($r, \"read\"), $r.starts_with(\"file\")";
+
+  @Param({"10", "100", "1000"})
+  public int facts;
+
+  @Param({"LOOKUP", "TRANSITIVE", "EXPRESSION"})
+  public Fixtures.Shape shape;
+
+  private String code;
+
+  @Setup
+  public void setup() {
+    this.code = this.shape.code(this.facts);
+  }
+
+  @Benchmark
+  public Either<Map<Integer, List<Error>>, Block> datalog() {
+    return Parser.datalog(0, this.code);
+  }
+
+  @Benchmark
+  public Either<Error, Tuple2<String, Check>> check() {
+    return Parser.check(CHECK);
+  }
+}
@@ -0,0 +1,59 @@
+package org.biscuitsec.biscuit.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.error.Error;
+import org.biscuitsec.biscuit.token.Authorizer;
+import org.biscuitsec.biscuit.token.Biscuit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Deserializing and loading the tokens of the samples, see src/test/resources/samples */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplesBenchmark {
+  // the samples with a valid signature
+  @Param({
+    "test001_basic.bc",
+    "test013_block_rules.bc",
+    "test017_expressions.bc",
+    "test024_third_party.bc",
+    "test028_expressions_v4.bc",
+    "test036_secp256r1.bc"
+  })
+  public String sample;
+
+  private PublicKey rootPublicKey;
+  private byte[] bytes;
+  private Biscuit token;
+
+  @Setup
+  public void setup() throws Exception {
+    this.rootPublicKey = Fixtures.samplesRootPublicKey();
+    this.bytes = Fixtures.sample(this.sample);
+    this.token = Biscuit.fromBytes(this.bytes, this.rootPublicKey);
+  }
+
+  @Benchmark
+  public Biscuit fromBytes() throws Exception {
+    return Biscuit.fromBytes(this.bytes, this.rootPublicKey);
+  }
+
+  @Benchmark
+  public Authorizer make() throws Error {
+    return Authorizer.make(this.token);
+  }
+}
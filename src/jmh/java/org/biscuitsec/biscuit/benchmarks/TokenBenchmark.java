@@ -0,0 +1,87 @@
+package org.biscuitsec.biscuit.benchmarks;
+
+import biscuit.format.schema.Schema.PublicKey.Algorithm;
+import io.vavr.control.Either;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import org.biscuitsec.biscuit.crypto.KeyPair;
+import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.error.Error;
+import org.biscuitsec.biscuit.token.Biscuit;
+import org.biscuitsec.biscuit.token.builder.Block;
+import org.biscuitsec.biscuit.token.format.SerializedBiscuit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Deserialization, signature verification and attenuation of generated tokens */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenBenchmark {
+  @Param({"Ed25519", "SECP256R1"})
+  public Algorithm algorithm;
+
+  @Param({"1", "4", "16"})
+  public int blocks;
+
+  @Param({"10", "100"})
+  public int facts;
+
+  @Param({"LOOKUP"})
+  public Fixtures.Shape shape;
+
+  private PublicKey rootPublicKey;
+  private Biscuit token;
+  private byte[] bytes;
+  private String base64;
+  private SerializedBiscuit serialized;
+  private SecureRandom rng;
+  private KeyPair next;
+  private Block block;
+
+  @Setup
+  public void setup() throws Exception {
+    this.rng = new SecureRandom();
+    final KeyPair root = KeyPair.generate(this.algorithm, this.rng);
+    this.rootPublicKey = root.getPublicKey();
+    this.token = Fixtures.token(root, this.blocks, this.shape, this.facts);
+    this.bytes = this.token.serialize();
+    this.base64 = this.token.serializeBase64Url();
+    this.serialized = SerializedBiscuit.deserializeUnsafe(this.bytes);
+    this.next = KeyPair.generate(this.algorithm, this.rng);
+    this.block = new Block().addCheck("check if " + this.shape.query(this.facts));
+  }
+
+  @Benchmark
+  public Biscuit fromBytes() throws Exception {
+    return Biscuit.fromBytes(this.bytes, this.rootPublicKey);
+  }
+
+  @Benchmark
+  public Biscuit fromBase64Url() throws Exception {
+    return Biscuit.fromBase64Url(this.base64, this.rootPublicKey);
+  }
+
+  /** Only the signatures, the token is deserialized in the setup */
+  @Benchmark
+  public Either<Error, Void> verify() throws Exception {
+    return this.serialized.verify(this.rootPublicKey);
+  }
+
+  @Benchmark
+  public Biscuit attenuate() throws Error {
+    return this.token.attenuate(this.rng, this.next, this.block);
+  }
+}
@@ -0,0 +1,54 @@
+package org.biscuitsec.biscuit.benchmarks;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.biscuitsec.biscuit.datalog.RunLimits;
+import org.biscuitsec.biscuit.datalog.SymbolTable;
+import org.biscuitsec.biscuit.datalog.World;
+import org.biscuitsec.biscuit.error.Error;
+import org.biscuitsec.biscuit.token.Biscuit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The evaluation of the rules of a world until no new fact is generated */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorldBenchmark {
+  @Param({"10", "100", "1000"})
+  public int facts;
+
+  @Param({"LOOKUP", "TRANSITIVE", "EXPRESSION"})
+  public Fixtures.Shape shape;
+
+  private SymbolTable symbolTable;
+  private World world;
+  private final RunLimits limits =
+      new RunLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Duration.ofSeconds(60));
+
+  @Setup
+  public void setup() {
+    this.symbolTable = Biscuit.defaultSymbolTable();
+    this.world = Fixtures.world(this.shape, this.facts, this.symbolTable);
+  }
+
+  /** Runs a copy of the world, which shares the facts and rules until the run adds facts */
+  @Benchmark
+  public World run() throws Error {
+    final World world = new World(this.world);
+    world.run(this.limits, this.symbolTable);
+    return world;
+  }
+}
@@ -0,0 +1,20 @@
+package org.biscuitsec.biscuit.datalog;
+
+/**
+ * Lets another thread stop a run, or an authorization, that uses limits holding this token
+ *
+ * <p>the token is checked at the same time as the deadline, so the run stops with {@link
+ * org.biscuitsec.biscuit.error.Error.Cancelled} shortly after {@link #cancel()} is called. A token
+ * cannot be reset, use a new one for each request.
+ */
+public final class CancellationToken {
+  private volatile boolean cancelled = false;
+
+  public void cancel() {
+    this.cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return this.cancelled;
+  }
+}
@@ -0,0 +1,345 @@
+package org.biscuitsec.biscuit.datalog;
+
+import io.vavr.Tuple2;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The facts sharing a predicate name and arity, stored in columns of primitive values
+ *
+ * <p>each term is a tag and a long: integers, dates and booleans are stored inline, strings as
+ * their symbol id, byte arrays and sets as an index in a side table. Each row also holds the index
+ * of its origin in a table of origins. Facts are deduplicated with an open addressing hash table of
+ * row numbers, so a fact costs a few bytes per term instead of a Predicate, a list and boxed terms
+ * in a HashSet.
+ *
+ * <p>facts are only built when they are read, and scans compare the encoded values, so the rows
+ * that do not match the predicate are skipped without building anything. This is used for the
+ * frozen layers made by {@link FactSet#compact()}, which are not modified once built and can be
+ * read concurrently.
+ */
+final class ColumnarRelation {
+  private static final byte INTEGER = 0;
+  private static final byte STR = 1;
+  private static final byte DATE = 2;
+  private static final byte BOOL = 3;
+  private static final byte BYTES = 4;
+  private static final byte SET = 5;
+  private static final byte VARIABLE = 6;
+  // the tag of a term that is not in the side table, so no stored fact can hold it
+  private static final byte ABSENT = -1;
+
+  private final long name;
+  private final int arity;
+  // for each column, the value and the tag of each row
+  private final long[][] values;
+  private final byte[][] tags;
+  // for each column, the bitmask of the tags it holds
+  private final int[] columnTags;
+  private int[] origins;
+  private int size = 0;
+
+  private final ArrayList<Origin> originTable = new ArrayList<>();
+  private final HashMap<Origin, Integer> originIds = new HashMap<>();
+  // byte arrays and sets
+  private final ArrayList<Term> sideTable = new ArrayList<>();
+  private final HashMap<Term, Integer> sideIds = new HashMap<>();
+
+  // open addressing, each slot holds a row number plus one, or 0 if it is empty
+  private int[] slots = new int[16];
+
+  ColumnarRelation(long name, int arity) {
+    this.name = name;
+    this.arity = arity;
+    this.values = new long[arity][16];
+    this.tags = new byte[arity][16];
+    this.columnTags = new int[arity];
+    this.origins = new int[16];
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  /** Adds the fact, returns false if it was already present */
+  boolean add(Origin origin, Fact fact) {
+    final List<Term> terms = fact.predicate().terms();
+    final int originId =
+        this.originIds.computeIfAbsent(
+            origin,
+            o -> {
+              this.originTable.add(o);
+              return this.originTable.size() - 1;
+            });
+    final long[] rowValues = new long[this.arity];
+    final byte[] rowTags = new byte[this.arity];
+    for (int i = 0; i < this.arity; i++) {
+      rowTags[i] = encode(terms.get(i), true);
+      rowValues[i] = encodedValue(terms.get(i));
+    }
+    if (find(originId, rowValues, rowTags) >= 0) {
+      return false;
+    }
+
+    if (this.size == this.origins.length) {
+      int capacity = this.size * 2;
+      this.origins = Arrays.copyOf(this.origins, capacity);
+      for (int i = 0; i < this.arity; i++) {
+        this.values[i] = Arrays.copyOf(this.values[i], capacity);
+        this.tags[i] = Arrays.copyOf(this.tags[i], capacity);
+      }
+    }
+    final int row = this.size;
+    this.origins[row] = originId;
+    for (int i = 0; i < this.arity; i++) {
+      this.values[i][row] = rowValues[i];
+      this.tags[i][row] = rowTags[i];
+      this.columnTags[i] |= 1 << rowTags[i];
+    }
+    this.size += 1;
+
+    if (this.size * 2 > this.slots.length) {
+      this.slots = new int[this.slots.length * 2];
+      for (int r = 0; r < this.size; r++) {
+        insertSlot(r);
+      }
+    } else {
+      insertSlot(row);
+    }
+    return true;
+  }
+
+  boolean contains(Origin origin, Fact fact) {
+    final Integer originId = this.originIds.get(origin);
+    if (originId == null) {
+      return false;
+    }
+    final List<Term> terms = fact.predicate().terms();
+    final long[] rowValues = new long[this.arity];
+    final byte[] rowTags = new byte[this.arity];
+    for (int i = 0; i < this.arity; i++) {
+      rowTags[i] = encode(terms.get(i), false);
+      if (rowTags[i] == ABSENT) {
+        return false;
+      }
+      rowValues[i] = encodedValue(terms.get(i));
+    }
+    return find(originId, rowValues, rowTags) >= 0;
+  }
+
+  /**
+   * Returns the facts from trusted origins matching the predicate's non variable terms
+   *
+   * <p>like {@link FactSet#stream(TrustedOrigins, Predicate)}, a column is only compared to a term
+   * if all its values have the same type as that term
+   */
+  Stream<Tuple2<Origin, Fact>> stream(TrustedOrigins scope, Predicate predicate) {
+    final boolean[] trusted = accepted(scope::contains);
+    if (trusted == null) {
+      return Stream.empty();
+    }
+
+    // the columns compared to a constant, with the encoded constant
+    final List<Term> terms = predicate.terms();
+    final int[] columns = new int[this.arity];
+    final long[] constantValues = new long[this.arity];
+    final byte[] constantTags = new byte[this.arity];
+    int constants = 0;
+    for (int i = 0; i < this.arity; i++) {
+      final Term term = terms.get(i);
+      if (term instanceof Term.Variable) {
+        continue;
+      }
+      final byte tag = tagOf(term);
+      if (this.columnTags[i] != 1 << tag) {
+        continue;
+      }
+      final byte encoded = encode(term, false);
+      if (encoded == ABSENT) {
+        return Stream.empty();
+      }
+      columns[constants] = i;
+      constantTags[constants] = encoded;
+      constantValues[constants] = encodedValue(term);
+      constants += 1;
+    }
+
+    final int constantCount = constants;
+    return IntStream.range(0, this.size)
+        .filter(
+            row -> {
+              if (!trusted[this.origins[row]]) {
+                return false;
+              }
+              for (int c = 0; c < constantCount; c++) {
+                int column = columns[c];
+                if (this.values[column][row] != constantValues[c]
+                    || this.tags[column][row] != constantTags[c]) {
+                  return false;
+                }
+              }
+              return true;
+            })
+        .mapToObj(row -> new Tuple2<>(this.originTable.get(this.origins[row]), fact(row)));
+  }
+
+  /** Returns all the facts, with their origin */
+  Stream<Tuple2<Origin, Fact>> stream() {
+    return IntStream.range(0, this.size)
+        .mapToObj(row -> new Tuple2<>(this.originTable.get(this.origins[row]), fact(row)));
+  }
+
+  /** Returns the facts from the accepted origins, without building the other ones */
+  Stream<Tuple2<Origin, Fact>> stream(java.util.function.Predicate<Origin> origins) {
+    final boolean[] accepted = accepted(origins);
+    if (accepted == null) {
+      return Stream.empty();
+    }
+    return IntStream.range(0, this.size)
+        .filter(row -> accepted[this.origins[row]])
+        .mapToObj(row -> new Tuple2<>(this.originTable.get(this.origins[row]), fact(row)));
+  }
+
+  /** Returns true if some facts come from an accepted origin */
+  boolean hasOrigin(java.util.function.Predicate<Origin> origins) {
+    return accepted(origins) != null;
+  }
+
+  // for each origin id, whether the origin is accepted, or null if none is
+  private boolean[] accepted(java.util.function.Predicate<Origin> origins) {
+    final boolean[] accepted = new boolean[this.originTable.size()];
+    boolean any = false;
+    for (int i = 0; i < accepted.length; i++) {
+      accepted[i] = origins.test(this.originTable.get(i));
+      any |= accepted[i];
+    }
+    return any ? accepted : null;
+  }
+
+  private Fact fact(int row) {
+    final ArrayList<Term> terms = new ArrayList<>(this.arity);
+    for (int i = 0; i < this.arity; i++) {
+      terms.add(decode(this.tags[i][row], this.values[i][row]));
+    }
+    return new Fact(new Predicate(this.name, terms));
+  }
+
+  private static byte tagOf(Term term) {
+    if (term instanceof Term.Integer) {
+      return INTEGER;
+    } else if (term instanceof Term.Str) {
+      return STR;
+    } else if (term instanceof Term.Date) {
+      return DATE;
+    } else if (term instanceof Term.Bool) {
+      return BOOL;
+    } else if (term instanceof Term.Bytes) {
+      return BYTES;
+    } else if (term instanceof Term.Set) {
+      return SET;
+    } else {
+      return VARIABLE;
+    }
+  }
+
+  // returns the term's tag, or ABSENT if it goes in the side table and is not there yet, unless
+  // insert is true
+  private byte encode(Term term, boolean insert) {
+    final byte tag = tagOf(term);
+    if ((tag == BYTES || tag == SET) && !this.sideIds.containsKey(term)) {
+      if (!insert) {
+        return ABSENT;
+      }
+      this.sideTable.add(term);
+      this.sideIds.put(term, this.sideTable.size() - 1);
+    }
+    return tag;
+  }
+
+  private long encodedValue(Term term) {
+    switch (tagOf(term)) {
+      case INTEGER:
+        return ((Term.Integer) term).value();
+      case STR:
+        return ((Term.Str) term).value();
+      case DATE:
+        return ((Term.Date) term).value();
+      case BOOL:
+        return ((Term.Bool) term).value() ? 1 : 0;
+      case VARIABLE:
+        return ((Term.Variable) term).value();
+      default:
+        return this.sideIds.get(term);
+    }
+  }
+
+  private Term decode(byte tag, long value) {
+    switch (tag) {
+      case INTEGER:
+        return Term.Integer.of(value);
+      case STR:
+        return new Term.Str(value);
+      case DATE:
+        return new Term.Date(value);
+      case BOOL:
+        return Term.Bool.of(value != 0);
+      case VARIABLE:
+        return new Term.Variable(value);
+      default:
+        return this.sideTable.get((int) value);
+    }
+  }
+
+  private int hash(int originId, long[] rowValues, byte[] rowTags) {
+    long h = originId;
+    for (int i = 0; i < rowValues.length; i++) {
+      h = h * 31 + rowValues[i];
+      h = h * 31 + rowTags[i];
+    }
+    h *= 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  // returns the row holding these values, or -1
+  private int find(int originId, long[] rowValues, byte[] rowTags) {
+    final int mask = this.slots.length - 1;
+    for (int i = hash(originId, rowValues, rowTags) & mask; ; i = (i + 1) & mask) {
+      final int slot = this.slots[i];
+      if (slot == 0) {
+        return -1;
+      }
+      final int row = slot - 1;
+      if (this.origins[row] == originId && rowEquals(row, rowValues, rowTags)) {
+        return row;
+      }
+    }
+  }
+
+  private boolean rowEquals(int row, long[] rowValues, byte[] rowTags) {
+    for (int i = 0; i < this.arity; i++) {
+      if (this.values[i][row] != rowValues[i] || this.tags[i][row] != rowTags[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void insertSlot(int row) {
+    final long[] rowValues = new long[this.arity];
+    final byte[] rowTags = new byte[this.arity];
+    for (int i = 0; i < this.arity; i++) {
+      rowValues[i] = this.values[i][row];
+      rowTags[i] = this.tags[i][row];
+    }
+    final int mask = this.slots.length - 1;
+    int i = hash(this.origins[row], rowValues, rowTags) & mask;
+    while (this.slots[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    this.slots[i] = row + 1;
+  }
+}
@@ -1,163 +1,365 @@
 package org.biscuitsec.biscuit.datalog;
 
 import io.vavr.Tuple2;
-import io.vavr.control.Option;
-import java.io.Serializable;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Set;
-import java.util.function.Supplier;
+import java.util.function.Function;
 import java.util.stream.Stream;
+import org.biscuitsec.biscuit.error.Error;
 
-public final class Combinator implements Serializable, Iterator<Tuple2<Origin, Map<Long, Term>>> {
-  private MatchedVariables variables;
-  private final Supplier<Stream<Tuple2<Origin, Fact>>> allFacts;
+/**
+ * Enumerates the combinations of facts matching a list of predicates
+ *
+ * <p>the variables are bound in a frame, with one slot per variable (see {@link CompiledRule}).
+ * The combinator goes through the predicates depth first: for each fact matching the predicate at
+ * one depth, it binds the variables that were still free, then looks for facts matching the next
+ * predicate. When backtracking, the variables bound at that depth are reset, so no copy of the
+ * bindings is made.
+ *
+ * <p>combinations are pushed to a {@link Sink}, which reads the variable values from the frame
+ * while it is called, and can stop the enumeration early.
+ *
+ * <p>a {@link Filter} can prune a combination as soon as some predicates are bound, instead of
+ * waiting for all of them.
+ *
+ * <p>each candidate fact read from a source is counted, and reported to the run's budget every
+ * {@link RunLimits.Budget#CHECK_INTERVAL} candidates, so that a large join stops soon after the
+ * deadline or the cancellation.
+ *
+ * <p>for tracing, the combinator can also keep the facts bound at each depth, and a copy of the
+ * deepest partial combination it reached. The copy is only made when a depth is reached for the
+ * first time, so it costs at most one copy per predicate.
+ */
+public final class Combinator {
+  private final Term[] frame;
   private final List<Predicate> predicates;
-  private final Iterator<Tuple2<Origin, Fact>> currentFacts;
-  private Combinator currentIt;
-  private final SymbolTable symbolTable;
+  // for each predicate, the slot of each term, or -1 if the term is not a variable
+  private final List<int[]> slots;
+  private final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> sources;
+  private final int last;
+  private final RunLimits.Budget budget;
+  // false if the sink does not need the origins, which are then not computed
+  private final boolean withOrigins;
+  private final Filter filter;
+  // the error raised by the filter for the current partial combination, and its depth
+  private Exception pending = null;
+  private int pendingDepth = -1;
+  // the candidates read since the last report to the budget
+  private int steps = 0;
+  // for the statistics: the candidates reported, the complete combinations of facts, and the ones
+  // passed to the sink
+  private long candidates = 0;
+  private long bindings = 0;
+  private long combinations = 0;
+  // when tracing, the fact bound at each depth, and a copy of the deepest partial combination
+  // reached, see traceMatches
+  private Tuple2<Origin, Fact>[] matched = null;
+  private int deepest = -1;
+  private Term[] deepestFrame = null;
+  private List<Tuple2<Origin, Fact>> deepestMatched = null;
 
-  private Origin currentOrigin;
+  // the slots bound at each depth, to reset them when backtracking
+  private final int[][] bound;
+  private final int[] boundCount;
 
-  private Option<Tuple2<Origin, Map<Long, Term>>> nextElement;
+  /** Receives the combinations found by the combinator */
+  @FunctionalInterface
+  public interface Sink {
+    /**
+     * Called for each combination, while the frame holds its variable values
+     *
+     * @return false to stop the enumeration
+     */
+    boolean accept(Origin origin) throws Error;
+  }
 
-  @Override
-  public boolean hasNext() {
-    if (this.nextElement != null && this.nextElement.isDefined()) {
-      return true;
-    }
-    this.nextElement = getNext();
-    return this.nextElement.isDefined();
+  /**
+   * Tests partial combinations, see {@link CompiledRule#filter}
+   *
+   * <p>an error, or a runtime exception, raised by the filter does not stop the enumeration right
+   * away: it is only thrown once that partial combination is completed, as it would have been if
+   * the filter had been applied to the complete combination. Until then, the filter is not called
+   * and no lookup is made for that partial combination
+   */
+  interface Filter {
+    /**
+     * Called once the predicate at that depth is bound, while the frame holds the values
+     *
+     * @return false to skip the combination
+     */
+    boolean test(int depth) throws Error;
+
+    /**
+     * A value that the variable at that column of the predicate at that depth must be equal to
+     * for the filter to succeed, or null
+     *
+     * <p>it is only used to look up candidate facts, the filter must still test it
+     */
+    Term lookup(int depth, int column);
   }
 
-  @Override
-  public Tuple2<Origin, Map<Long, Term>> next() {
-    if (this.nextElement == null || !this.nextElement.isDefined()) {
-      this.nextElement = getNext();
-    }
-    if (this.nextElement == null || !this.nextElement.isDefined()) {
-      throw new NoSuchElementException();
-    } else {
-      Tuple2<Origin, Map<Long, Term>> t = this.nextElement.get();
-      this.nextElement = Option.none();
-      return t;
+  /**
+   * Creates a combinator where each predicate reads its candidate facts from its own source
+   *
+   * <p>the lists of slots and sources must have the same size as the list of predicates. Each
+   * source receives the predicate with the variables bound by the previous predicates replaced by
+   * their values, so it can look up the matching facts in an index instead of returning all of
+   * them
+   */
+  public Combinator(
+      final Term[] frame,
+      final List<Predicate> predicates,
+      final List<int[]> slots,
+      final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> sources) {
+    this(frame, predicates, slots, sources, RunLimits.Budget.UNLIMITED);
+  }
+
+  /** Creates a combinator that reports the candidate facts it reads to the budget */
+  public Combinator(
+      final Term[] frame,
+      final List<Predicate> predicates,
+      final List<int[]> slots,
+      final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> sources,
+      final RunLimits.Budget budget) {
+    this(frame, predicates, slots, sources, budget, true);
+  }
+
+  /**
+   * Creates a combinator that can skip computing the origins, for queries that only check that a
+   * combination exists: the sink then receives a null origin
+   */
+  Combinator(
+      final Term[] frame,
+      final List<Predicate> predicates,
+      final List<int[]> slots,
+      final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> sources,
+      final RunLimits.Budget budget,
+      final boolean withOrigins) {
+    this(frame, predicates, slots, sources, budget, withOrigins, null);
+  }
+
+  /** Creates a combinator testing partial combinations with the filter */
+  Combinator(
+      final Term[] frame,
+      final List<Predicate> predicates,
+      final List<int[]> slots,
+      final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> sources,
+      final RunLimits.Budget budget,
+      final boolean withOrigins,
+      final Filter filter) {
+    this.frame = frame;
+    this.budget = budget;
+    this.withOrigins = withOrigins;
+    this.filter = filter;
+    this.predicates = predicates;
+    this.slots = slots;
+    this.sources = sources;
+    this.last = predicates.size() - 1;
+
+    this.bound = new int[predicates.size()][];
+    this.boundCount = new int[predicates.size()];
+    for (int i = 0; i < predicates.size(); i++) {
+      this.bound[i] = new int[predicates.get(i).terms().size()];
     }
   }
 
-  public Option<Tuple2<Origin, Map<Long, Term>>> getNext() {
+  /**
+   * Calls the sink for each combination of facts matching the predicates
+   *
+   * <p>if there are no predicates, the sink is called once, with an empty origin
+   *
+   * @return false if the sink stopped the enumeration
+   * @throws Error.Timeout, Error.Cancelled or Error.TooManyJoinCandidates if the budget runs out
+   */
+  public boolean forEach(Sink sink) throws Error {
     if (this.predicates.isEmpty()) {
-      final Option<Map<Long, Term>> vOpt = this.variables.complete();
-      if (vOpt.isEmpty()) {
-        return Option.none();
-      } else {
-        Map<Long, Term> variables = vOpt.get();
-        // if there were no predicates,
-        // we should return a value, but only once. To prevent further
-        // successful calls, we create a set of variables that cannot
-        // possibly be completed, so the next call will fail
-        Set<Long> set = new HashSet<>();
-        set.add((long) 0);
-
-        this.variables = new MatchedVariables(set);
-        return Option.some(new Tuple2<>(new Origin(), variables));
-      }
+      this.bindings += 1;
+      this.combinations += 1;
+      return sink.accept(new Origin());
     }
+    this.pending = null;
+    this.pendingDepth = -1;
+    final boolean result = join(0, null, sink);
+    report();
+    return result;
+  }
 
-    while (true) {
-      if (this.currentIt == null) {
-        Predicate predicate = this.predicates.get(0);
-
-        while (true) {
-          // we iterate over the facts that match the current predicate
-          if (this.currentFacts.hasNext()) {
-            final Tuple2<Origin, Fact> t = this.currentFacts.next();
-            Origin currentOrigin = t._1.clone();
-            Fact fact = t._2;
-
-            // create a new MatchedVariables in which we fix variables we could unify from our first
-            // predicate and the current fact
-            MatchedVariables vars = this.variables.clone();
-            boolean matchTerms = true;
-
-            // we know the fact matches the predicate's format so they have the same number of terms
-            // fill the MatchedVariables before creating the next combinator
-            for (int i = 0; i < predicate.terms().size(); ++i) {
-              final Term term = predicate.terms().get(i);
-              if (term instanceof Term.Variable) {
-                final long key = ((Term.Variable) term).value();
-                final Term value = fact.predicate().terms().get(i);
-
-                if (!vars.insert(key, value)) {
-                  matchTerms = false;
-                }
-                if (!matchTerms) {
-                  break;
-                }
-              }
-            }
-
-            // the fact did not match the predicate, try the next one
-            if (!matchTerms) {
-              continue;
-            }
-
-            // there are no more predicates to check
-            if (this.predicates.size() == 1) {
-              final Option<Map<Long, Term>> vOpt = vars.complete();
-              if (vOpt.isEmpty()) {
-                continue;
-              } else {
-                return Option.some(new Tuple2<>(currentOrigin, vOpt.get()));
-              }
-            } else {
-              this.currentOrigin = currentOrigin;
-              // we found a matching fact, we create a new combinator over the rest of the
-              // predicates
-              // no need to copy all the expressions at all levels
-              this.currentIt =
-                  new Combinator(
-                      vars, predicates.subList(1, predicates.size()), this.allFacts, this.symbolTable);
-            }
-            break;
-
-          } else {
-            return Option.none();
+  /** Keeps the facts bound at each depth, and the deepest partial combination */
+  @SuppressWarnings("unchecked")
+  void traceMatches() {
+    this.matched = new Tuple2[this.predicates.size()];
+  }
+
+  /** While the sink is called, the facts of the combination, in join order */
+  List<Tuple2<Origin, Fact>> matched() {
+    return Arrays.asList(this.matched.clone());
+  }
+
+  /** A copy of the frame of the deepest partial combination reached, or null if there is none */
+  Term[] deepestFrame() {
+    return this.deepestFrame;
+  }
+
+  /**
+   * The facts of the deepest partial combination reached, in join order, null for the predicates
+   * that were not bound
+   */
+  List<Tuple2<Origin, Fact>> deepestMatched() {
+    return this.deepestMatched;
+  }
+
+  /** The number of candidate facts read by the enumerations */
+  long candidates() {
+    return this.candidates + this.steps;
+  }
+
+  /** The number of combinations of facts matching all the predicates */
+  long bindings() {
+    return this.bindings;
+  }
+
+  /** The number of combinations passed to the sink */
+  long combinations() {
+    return this.combinations;
+  }
+
+  private void report() throws Error {
+    this.candidates += this.steps;
+    final int steps = this.steps;
+    this.steps = 0;
+    this.budget.consume(steps);
+  }
+
+  private boolean join(int depth, Origin origin, Sink sink) throws Error {
+    final Predicate predicate = this.predicates.get(depth);
+    final Iterator<Tuple2<Origin, Fact>> it =
+        this.sources.get(depth).apply(boundPredicate(depth)).iterator();
+
+    while (it.hasNext()) {
+      final Tuple2<Origin, Fact> t = it.next();
+      if (++this.steps == RunLimits.Budget.CHECK_INTERVAL) {
+        report();
+      }
+      if (!t._2.matchPredicate(predicate) || !bind(depth, t._2)) {
+        unbind(depth);
+        continue;
+      }
+      if (this.matched != null) {
+        this.matched[depth] = t;
+        if (depth > this.deepest) {
+          this.deepest = depth;
+          this.deepestFrame = this.frame.clone();
+          this.deepestMatched = Arrays.asList(this.matched.clone());
+        }
+      }
+      if (depth == this.last) {
+        this.bindings += 1;
+      }
+
+      if (test(depth)) {
+        if (depth == this.last && this.pending != null) {
+          final Exception error = this.pending;
+          this.pending = null;
+          unbind(depth);
+          if (error instanceof Error) {
+            throw (Error) error;
           }
+          throw (RuntimeException) error;
+        }
+        final Origin factsOrigin =
+            !this.withOrigins ? null : origin == null ? t._1 : origin.union(t._1);
+        final boolean more;
+        if (depth == this.last) {
+          this.combinations += 1;
+          more = sink.accept(factsOrigin);
+        } else {
+          more = join(depth + 1, factsOrigin, sink);
+        }
+        if (this.pendingDepth == depth) {
+          // no complete combination had this partial one as prefix
+          this.pending = null;
+          this.pendingDepth = -1;
+        }
+        if (!more) {
+          unbind(depth);
+          return false;
         }
       }
+      unbind(depth);
+    }
+    if (this.matched != null) {
+      this.matched[depth] = null;
+    }
+    return true;
+  }
 
-      if (this.currentIt == null) {
-        return Option.none();
+  // binds the free variables of the predicate to the fact's terms, returns false if a variable
+  // that was already bound has a different value
+  private boolean bind(int depth, Fact fact) {
+    final int[] termSlots = this.slots.get(depth);
+    final List<Term> terms = fact.predicate().terms();
+    this.boundCount[depth] = 0;
+    for (int i = 0; i < termSlots.length; i++) {
+      final int slot = termSlots[i];
+      if (slot < 0) {
+        continue;
+      }
+      final Term value = terms.get(i);
+      if (this.frame[slot] == null) {
+        this.frame[slot] = value;
+        this.bound[depth][this.boundCount[depth]++] = slot;
+      } else if (!this.frame[slot].equals(value)) {
+        return false;
       }
+    }
+    return true;
+  }
 
-      Option<Tuple2<Origin, Map<Long, Term>>> opt = this.currentIt.getNext();
+  // applies the filter, unless an error is already pending for this partial combination
+  private boolean test(int depth) {
+    if (this.filter == null || this.pending != null) {
+      return true;
+    }
+    try {
+      return this.filter.test(depth);
+    } catch (Error | RuntimeException error) {
+      this.pending = error;
+      this.pendingDepth = depth;
+      return true;
+    }
+  }
 
-      if (opt.isDefined()) {
-        Tuple2<Origin, Map<Long, Term>> t = opt.get();
-        return Option.some(new Tuple2<>(t._1.union(currentOrigin), t._2));
-      } else {
-        currentOrigin = null;
-        currentIt = null;
-      }
+  private void unbind(int depth) {
+    for (int i = 0; i < this.boundCount[depth]; i++) {
+      this.frame[this.bound[depth][i]] = null;
     }
+    this.boundCount[depth] = 0;
   }
 
-  public Combinator(
-      final MatchedVariables variables,
-      final List<Predicate> predicates,
-      Supplier<Stream<Tuple2<Origin, Fact>>> allFacts,
-      final SymbolTable symbolTable) {
-    this.variables = variables;
-    this.allFacts = allFacts;
-    this.currentIt = null;
-    this.predicates = predicates;
-    this.currentFacts =
-        allFacts.get().filter((tuple) -> tuple._2.matchPredicate(predicates.get(0))).iterator();
-    this.symbolTable = symbolTable;
-    this.currentOrigin = null;
-    this.nextElement = null;
+  // replaces the variables that already have a value with that value, and the ones the filter
+  // looks up with the lookup value
+  private Predicate boundPredicate(int depth) {
+    final Predicate predicate = this.predicates.get(depth);
+    final int[] termSlots = this.slots.get(depth);
+    final boolean lookup = this.filter != null && this.pending == null;
+    List<Term> terms = null;
+    for (int i = 0; i < termSlots.length; i++) {
+      if (termSlots[i] < 0) {
+        continue;
+      }
+      Term value = this.frame[termSlots[i]];
+      if (value == null && lookup) {
+        value = this.filter.lookup(depth, i);
+      }
+      if (value != null) {
+        if (terms == null) {
+          terms = new ArrayList<>(predicate.terms());
+        }
+        terms.set(i, value);
+      }
+    }
+    return terms == null ? predicate : new Predicate(predicate.name(), terms);
   }
 }
@@ -0,0 +1,289 @@
+package org.biscuitsec.biscuit.datalog;
+
+import io.vavr.Tuple2;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.biscuitsec.biscuit.datalog.expressions.Expression;
+import org.biscuitsec.biscuit.datalog.expressions.Op;
+import org.biscuitsec.biscuit.error.Error;
+
+/**
+ * A rule where each variable is numbered, so that its value can be stored in a slot of a Term
+ * array instead of a map
+ *
+ * <p>the slots are assigned in order of first appearance in the body, then in the head and the
+ * expressions. A variable that does not appear in the body never gets a value, reading it fails
+ * as it did with a map.
+ */
+final class CompiledRule {
+  private final Rule rule;
+  private final int frameSize;
+  // for each body predicate, the slot of each term, or -1 if the term is not a variable
+  private final List<int[]> bodySlots;
+  private final int[] headSlots;
+  // for each expression, the slot of the variable pushed by each op, or -1
+  private final List<int[]> expressionSlots;
+  // the variable symbol of each slot
+  private final long[] variables;
+
+  CompiledRule(Rule rule) {
+    this.rule = rule;
+    HashMap<Long, Integer> slots = new HashMap<>();
+
+    this.bodySlots = new ArrayList<>(rule.body().size());
+    for (Predicate predicate : rule.body()) {
+      this.bodySlots.add(termSlots(predicate.terms(), slots));
+    }
+    this.headSlots = termSlots(rule.head().terms(), slots);
+
+    this.expressionSlots = new ArrayList<>(rule.expressions().size());
+    for (Expression expression : rule.expressions()) {
+      List<Op> ops = expression.getOps();
+      int[] opSlots = new int[ops.size()];
+      for (int i = 0; i < ops.size(); i++) {
+        opSlots[i] = -1;
+        if (ops.get(i) instanceof Op.Value) {
+          Term value = ((Op.Value) ops.get(i)).getValue();
+          if (value instanceof Term.Variable) {
+            opSlots[i] = slot((Term.Variable) value, slots);
+          }
+        }
+      }
+      this.expressionSlots.add(opSlots);
+    }
+
+    this.frameSize = slots.size();
+    this.variables = new long[this.frameSize];
+    for (Map.Entry<Long, Integer> entry : slots.entrySet()) {
+      this.variables[entry.getValue()] = entry.getKey();
+    }
+  }
+
+  private static int[] termSlots(List<Term> terms, HashMap<Long, Integer> slots) {
+    int[] result = new int[terms.size()];
+    for (int i = 0; i < terms.size(); i++) {
+      Term term = terms.get(i);
+      result[i] = term instanceof Term.Variable ? slot((Term.Variable) term, slots) : -1;
+    }
+    return result;
+  }
+
+  private static int slot(Term.Variable variable, HashMap<Long, Integer> slots) {
+    return slots.computeIfAbsent(variable.value(), k -> slots.size());
+  }
+
+  /** Returns the values in the frame by variable symbol, in slot order, skipping unbound slots */
+  Map<Long, Term> bindings(Term[] frame) {
+    final Map<Long, Term> result = new LinkedHashMap<>();
+    for (int slot = 0; slot < frame.length; slot++) {
+      if (frame[slot] != null) {
+        result.put(this.variables[slot], frame[slot]);
+      }
+    }
+    return result;
+  }
+
+  Term[] newFrame() {
+    return new Term[this.frameSize];
+  }
+
+  List<int[]> bodySlots() {
+    return this.bodySlots;
+  }
+
+  /**
+   * The state used to evaluate the expressions, allocated once per application of the rule and
+   * reused for each binding
+   */
+  static final class Scratch {
+    private final TemporarySymbolTable temporarySymbols;
+    private final Deque<Term> stack = new ArrayDeque<>(16);
+    // the number of expressions evaluated, for the statistics
+    long evaluations = 0;
+
+    Scratch(SymbolTable symbolTable) {
+      this.temporarySymbols = new TemporarySymbolTable(symbolTable);
+    }
+  }
+
+  /**
+   * Evaluates the expressions with the values in the frame, reusing the scratch state
+   *
+   * @return true if they all returned true, false if one of them returned false
+   * @throws Error.InvalidType if an expression does not return a boolean
+   */
+  boolean checkExpressions(Term[] frame, Scratch scratch) throws Error {
+    return checkExpressions(frame, scratch, 0, rule.expressions().size());
+  }
+
+  // evaluates the expressions from start (included) to end (excluded)
+  private boolean checkExpressions(Term[] frame, Scratch scratch, int start, int end)
+      throws Error {
+    if (start >= end) {
+      return true;
+    }
+    // temporary symbols only live for the evaluation of one binding
+    scratch.temporarySymbols.clear();
+    for (int i = start; i < end; i++) {
+      scratch.evaluations += 1;
+      Term term =
+          rule.expressions()
+              .get(i)
+              .evaluate(frame, expressionSlots.get(i), scratch.temporarySymbols, scratch.stack);
+      if (term instanceof Term.Bool) {
+        if (!((Term.Bool) term).value()) {
+          return false;
+        }
+        // continue evaluating if true
+      } else {
+        throw new Error.InvalidType();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a filter evaluating each expression at the first depth of the join where it can be
+   *
+   * <p>the expressions are still evaluated in order: an expression is evaluated once its variables
+   * and those of the expressions before it are bound, so that each one is only evaluated if the
+   * previous ones returned true, as if they were evaluated on the complete combination. An
+   * expression using a variable that the body does not bind is evaluated at the last depth, where
+   * it fails as before.
+   *
+   * <p>if the first expression evaluated at a depth is an equality between a variable bound at
+   * that depth and a constant, the constant is used to look up the candidate facts. The facts it
+   * skips hold a term of the same type and a different value (see {@link FactSet}), for which
+   * that expression returns false without error.
+   *
+   * @param orderedSlots the slots of the body predicates, in join order
+   * @return the filter, or null if there are no expressions
+   */
+  Combinator.Filter filter(List<int[]> orderedSlots, Term[] frame, Scratch scratch) {
+    final int expressionCount = rule.expressions().size();
+    if (expressionCount == 0 || orderedSlots.isEmpty()) {
+      return null;
+    }
+    final int last = orderedSlots.size() - 1;
+
+    // the depth at which each variable gets its value, or -1
+    final int[] boundAt = new int[this.frameSize];
+    Arrays.fill(boundAt, -1);
+    for (int depth = 0; depth < orderedSlots.size(); depth++) {
+      for (int slot : orderedSlots.get(depth)) {
+        if (slot >= 0 && boundAt[slot] < 0) {
+          boundAt[slot] = depth;
+        }
+      }
+    }
+
+    // expressions are evaluated in order, so each one is evaluated at the depth where it and all
+    // the previous ones are ready: for each depth, the range of expressions evaluated there
+    final int[] start = new int[orderedSlots.size()];
+    final int[] end = new int[orderedSlots.size()];
+    int depth = 0;
+    for (int i = 0; i < expressionCount; i++) {
+      for (int slot : this.expressionSlots.get(i)) {
+        if (slot >= 0) {
+          depth = Math.max(depth, boundAt[slot] < 0 ? last : boundAt[slot]);
+        }
+      }
+      if (start[depth] == end[depth]) {
+        start[depth] = i;
+      }
+      end[depth] = i + 1;
+    }
+
+    // the constant that the variable at a column must be equal to, for each depth
+    final Term[][] lookups = new Term[orderedSlots.size()][];
+    for (int d = 0; d < orderedSlots.size(); d++) {
+      if (start[d] == end[d]) {
+        continue;
+      }
+      final int first = start[d];
+      final Tuple2<Integer, Term> equality = equalityToConstant(first);
+      if (equality == null || boundAt[equality._1] != d) {
+        continue;
+      }
+      final int[] termSlots = orderedSlots.get(d);
+      lookups[d] = new Term[termSlots.length];
+      for (int column = 0; column < termSlots.length; column++) {
+        if (termSlots[column] == equality._1) {
+          lookups[d][column] = equality._2;
+        }
+      }
+    }
+
+    return new Combinator.Filter() {
+      @Override
+      public boolean test(int depth) throws Error {
+        return checkExpressions(frame, scratch, start[depth], end[depth]);
+      }
+
+      @Override
+      public Term lookup(int depth, int column) {
+        return lookups[depth] == null ? null : lookups[depth][column];
+      }
+    };
+  }
+
+  // if the expression is `$variable == constant` or `constant == $variable`, returns the slot of
+  // the variable and the constant, otherwise null
+  private Tuple2<Integer, Term> equalityToConstant(int expression) {
+    final List<Op> ops = rule.expressions().get(expression).getOps();
+    final int[] opSlots = this.expressionSlots.get(expression);
+    if (ops.size() != 3
+        || !(ops.get(2) instanceof Op.Binary)
+        || ((Op.Binary) ops.get(2)).getOp() != Op.BinaryOp.Equal
+        || !(ops.get(0) instanceof Op.Value)
+        || !(ops.get(1) instanceof Op.Value)) {
+      return null;
+    }
+    for (int i = 0; i < 2; i++) {
+      final Term other = ((Op.Value) ops.get(1 - i)).getValue();
+      if (opSlots[i] >= 0 && !(other instanceof Term.Variable)) {
+        return new Tuple2<>(opSlots[i], other);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Builds the head with the values in the frame
+   *
+   * @throws Error.InternalError if a variable of the head has no value
+   */
+  Predicate head(Term[] frame) throws Error {
+    checkHead(frame);
+    List<Term> headTerms = rule.head().terms();
+    ArrayList<Term> terms = new ArrayList<>(headTerms.size());
+    for (int i = 0; i < headTerms.size(); i++) {
+      if (headSlots[i] < 0) {
+        terms.add(headTerms.get(i));
+      } else {
+        terms.add(frame[headSlots[i]]);
+      }
+    }
+    return new Predicate(rule.head().name(), terms);
+  }
+
+  /**
+   * Fails like {@link #head(Term[])} would, without building the head
+   *
+   * @throws Error.InternalError if a variable of the head has no value
+   */
+  void checkHead(Term[] frame) throws Error {
+    for (int slot : headSlots) {
+      if (slot >= 0 && frame[slot] == null) {
+        // variables that appear in the head should appear in the body as well
+        throw new Error.InternalError();
+      }
+    }
+  }
+}
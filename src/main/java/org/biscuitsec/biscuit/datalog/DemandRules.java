@@ -0,0 +1,161 @@
+package org.biscuitsec.biscuit.datalog;
+
+import io.vavr.Tuple2;
+import io.vavr.Tuple3;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import org.biscuitsec.biscuit.datalog.expressions.Expression;
+import org.biscuitsec.biscuit.datalog.expressions.Op;
+
+/**
+ * Selects and specializes the rules needed to answer a query, see {@link
+ * World#queryRuleOnDemand}
+ *
+ * <p>starting from the query's body predicates, each goal is a predicate with some of its terms
+ * bound to constants. The rules whose head can produce facts for a goal are kept, with the head
+ * variables at bound positions replaced by the constants everywhere in the rule, and their body
+ * predicates become new goals. This is the constant propagation part of the magic sets
+ * transformation: bindings known from the query reach the rules they are relevant to, without
+ * adding magic predicates, whose facts would have to carry origins and would change the origins
+ * of the facts derived from them.
+ *
+ * <p>a specialized rule generates a subset of the facts of the original rule, with the same
+ * origins, and the rules that cannot produce facts for a goal are never evaluated, so the query
+ * gets the same results as after a full run.
+ */
+final class DemandRules {
+  // above this number of bound goals for a predicate, it is asked for all its facts
+  private static final int MAX_GOALS_PER_PREDICATE = 8;
+
+  private final HashMap<PredicateKey, List<Tuple3<Long, TrustedOrigins, Rule>>> producers =
+      new HashMap<>();
+  // a goal is a predicate name and arity, and its terms, null where they are not bound
+  private final HashSet<Tuple2<PredicateKey, List<Term>>> goals = new HashSet<>();
+  private final HashMap<PredicateKey, Integer> goalsPerPredicate = new HashMap<>();
+  private final HashSet<PredicateKey> unbound = new HashSet<>();
+  private final Deque<Tuple2<PredicateKey, List<Term>>> pending = new ArrayDeque<>();
+  private final LinkedHashSet<Tuple3<Long, TrustedOrigins, Rule>> selected = new LinkedHashSet<>();
+
+  private DemandRules(RuleSet rules) {
+    for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry :
+        rules.getRules().entrySet()) {
+      for (Tuple2<Long, Rule> t : entry.getValue()) {
+        this.producers
+            .computeIfAbsent(new PredicateKey(t._2.head()), k -> new ArrayList<>())
+            .add(new Tuple3<>(t._1, entry.getKey(), t._2));
+      }
+    }
+  }
+
+  /** Returns the rules needed to find the facts matching the predicates, with origin and scope */
+  static List<Tuple3<Long, TrustedOrigins, Rule>> rules(RuleSet rules, List<Predicate> predicates) {
+    DemandRules demand = new DemandRules(rules);
+    for (Predicate predicate : predicates) {
+      demand.addGoal(predicate);
+    }
+    while (!demand.pending.isEmpty()) {
+      demand.solve(demand.pending.pop());
+    }
+    return new ArrayList<>(demand.selected);
+  }
+
+  private void addGoal(Predicate predicate) {
+    final PredicateKey key = new PredicateKey(predicate);
+    if (this.unbound.contains(key)) {
+      return;
+    }
+    List<Term> bound = new ArrayList<>(predicate.terms().size());
+    boolean any = false;
+    for (Term term : predicate.terms()) {
+      if (term instanceof Term.Variable) {
+        bound.add(null);
+      } else {
+        bound.add(term);
+        any = true;
+      }
+    }
+    if (!any || this.goalsPerPredicate.getOrDefault(key, 0) >= MAX_GOALS_PER_PREDICATE) {
+      bound = Collections.nCopies(bound.size(), null);
+      this.unbound.add(key);
+    }
+
+    final Tuple2<PredicateKey, List<Term>> goal = new Tuple2<>(key, bound);
+    if (this.goals.add(goal)) {
+      this.goalsPerPredicate.merge(key, 1, Integer::sum);
+      this.pending.push(goal);
+    }
+  }
+
+  private void solve(Tuple2<PredicateKey, List<Term>> goal) {
+    for (Tuple3<Long, TrustedOrigins, Rule> producer :
+        this.producers.getOrDefault(goal._1, Collections.emptyList())) {
+      final Rule rule = specialize(producer._3, goal._2);
+      if (rule != null && this.selected.add(new Tuple3<>(producer._1, producer._2, rule))) {
+        for (Predicate predicate : rule.body()) {
+          addGoal(predicate);
+        }
+      }
+    }
+  }
+
+  // returns the rule with its head bound to the goal's constants, or null if its head cannot
+  // match them
+  private static Rule specialize(Rule rule, List<Term> bound) {
+    final HashMap<Long, Term> substitution = new HashMap<>();
+    final List<Term> head = rule.head().terms();
+    for (int i = 0; i < bound.size(); i++) {
+      final Term constant = bound.get(i);
+      if (constant == null) {
+        continue;
+      }
+      final Term term = head.get(i);
+      if (term instanceof Term.Variable) {
+        final Term previous = substitution.putIfAbsent(((Term.Variable) term).value(), constant);
+        if (previous != null && !previous.equals(constant)) {
+          return null;
+        }
+      } else if (!term.equals(constant)) {
+        return null;
+      }
+    }
+    if (substitution.isEmpty()) {
+      return rule;
+    }
+
+    final List<Predicate> body = new ArrayList<>(rule.body().size());
+    for (Predicate predicate : rule.body()) {
+      body.add(substitute(predicate, substitution));
+    }
+    final List<Expression> expressions = new ArrayList<>(rule.expressions().size());
+    for (Expression expression : rule.expressions()) {
+      final ArrayList<Op> ops = new ArrayList<>(expression.getOps().size());
+      for (Op op : expression.getOps()) {
+        if (op instanceof Op.Value && ((Op.Value) op).getValue() instanceof Term.Variable) {
+          Term value = substitution.get(((Term.Variable) ((Op.Value) op).getValue()).value());
+          ops.add(value == null ? op : new Op.Value(value));
+        } else {
+          ops.add(op);
+        }
+      }
+      expressions.add(new Expression(ops));
+    }
+    return new Rule(substitute(rule.head(), substitution), body, expressions, rule.scopes());
+  }
+
+  private static Predicate substitute(Predicate predicate, Map<Long, Term> substitution) {
+    final List<Term> terms = new ArrayList<>(predicate.terms().size());
+    for (Term term : predicate.terms()) {
+      Term value =
+          term instanceof Term.Variable ? substitution.get(((Term.Variable) term).value()) : null;
+      terms.add(value == null ? term : value);
+    }
+    return new Predicate(predicate.name(), terms);
+  }
+}
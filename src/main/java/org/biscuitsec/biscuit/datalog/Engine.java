@@ -0,0 +1,128 @@
+package org.biscuitsec.biscuit.datalog;
+
+import io.vavr.Tuple3;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.biscuitsec.biscuit.error.Error;
+
+/**
+ * A Datalog evaluator holding facts and rules, as used by the authorizer
+ *
+ * <p>{@link World} is the reference implementation. Another engine must generate the same facts,
+ * with the same origins, and give the same query results, including the errors raised by
+ * expressions and the limits of {@link RunLimits}, so that authorizations do not depend on the
+ * engine. The facts and rules are exchanged as {@link FactSet} and {@link RuleSet}.
+ *
+ * <p>the default methods are the optional optimizations of the reference engine: an engine that
+ * does not override them gets the same results, without the optimization.
+ */
+public interface Engine {
+  void addFact(Origin origin, Fact fact);
+
+  void addRule(Long origin, TrustedOrigins scope, Rule rule);
+
+  /**
+   * Runs the rules until no new facts can be generated, within a budget started by the caller
+   *
+   * @throws Error.TooManyFacts, Error.TooManyIterations, Error.Timeout, or the errors of the
+   *     rules' expressions
+   */
+  void run(RunLimits.Budget budget, SymbolTable symbolTable) throws Error;
+
+  /** Returns the facts generated by the rule from the facts trusted by the scope */
+  FactSet queryRule(
+      Rule rule,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error;
+
+  /** Returns true if the body of the rule matches at least once */
+  boolean queryMatch(
+      Rule rule,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error;
+
+  /** Returns true if the body of the rule matches, and the expressions are true for all matches */
+  boolean queryMatchAll(
+      Rule rule,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error;
+
+  /**
+   * Returns the facts
+   *
+   * <p>facts must be added with addFact instead of through the returned set
+   */
+  FactSet getFacts();
+
+  RuleSet getRules();
+
+  /** Returns an independent copy of the engine, with the same facts and rules */
+  Engine copy();
+
+  /**
+   * Stores the facts in a compact, read-only form shared by the copies, see {@link
+   * FactSet#compact()}
+   *
+   * <p>by default this does nothing
+   */
+  default void compact() {}
+
+  /** Returns true if a run would not generate new facts */
+  default boolean isSaturated() {
+    return false;
+  }
+
+  /**
+   * Returns the facts generated by the query, as after a run, without necessarily running all
+   * the rules
+   *
+   * <p>by default, this runs the engine then calls {@link #queryRule}
+   */
+  default FactSet queryRuleOnDemand(
+      Rule rule,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error {
+    run(budget, symbolTable);
+    return queryRule(rule, origin, scope, symbolTable, budget);
+  }
+
+  /**
+   * Adds facts generated by some of the rules outside of a run, see {@link World#addMemoized}
+   *
+   * <p>by default, the facts are added and the rules are applied again by the next run
+   */
+  default void addMemoized(FactSet facts, Collection<Tuple3<Long, TrustedOrigins, Rule>> rules) {
+    for (Map.Entry<Origin, HashSet<Fact>> entry : facts.facts().entrySet()) {
+      for (Fact fact : entry.getValue()) {
+        addFact(entry.getKey(), fact);
+      }
+    }
+  }
+
+  /**
+   * Returns the rules whose generated facts only depend on some origins, see {@link
+   * World#closedRules}
+   *
+   * <p>by default there are none, so no facts are memoized for this engine
+   */
+  default Set<Tuple3<Long, TrustedOrigins, Rule>> closedRules(
+      java.util.function.Predicate<Long> ruleOrigins,
+      java.util.function.Predicate<Origin> factOrigins) {
+    return Collections.emptySet();
+  }
+}
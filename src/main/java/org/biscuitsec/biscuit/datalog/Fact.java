@@ -43,7 +43,7 @@ public final class Fact implements Serializable {
 
   @Override
   public int hashCode() {
-    return Objects.hash(predicate);
+    return predicate == null ? 0 : predicate.hashCode();
   }
 
   @Override
@@ -61,7 +61,7 @@ public final class Fact implements Serializable {
       Error.FormatError e = res.getLeft();
       return Left(e);
     } else {
-      return Right(new Fact(res.get()));
+      return Right(Interner.fact(new Fact(res.get())));
     }
   }
 }
@@ -1,77 +1,371 @@
 package org.biscuitsec.biscuit.datalog;
 
 import io.vavr.Tuple2;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
+/**
+ * A set of facts, grouped by origin
+ *
+ * <p>cloning does not copy the facts: the facts added so far are moved to a frozen layer shared
+ * by both sets, and each set then stores the facts added to it on top of that layer. Cloning a
+ * preloaded set for each request is then O(1), and a request only pays for the facts it adds.
+ *
+ * <p>scoped scans only go through the origins the scope trusts: for each scope, the list of
+ * trusted origins is computed once, then extended when facts with a new origin are added, see
+ * {@link Views}. There are only a few distinct scopes in an authorization, one per block and one
+ * for the authorizer.
+ *
+ * <p>a large set of facts can also be moved to a layer stored in columns of primitive values with
+ * {@link #compact()}, see {@link ColumnarRelation}.
+ */
 public final class FactSet {
-  private final HashMap<Origin, HashSet<Fact>> facts;
+  // above this number of frozen layers, they are merged into one at the next clone
+  private static final int MAX_LAYERS = 8;
+
+  private HashMap<Origin, HashSet<Fact>> facts;
+  // the sets of facts each scope can see
+  private Views<HashSet<Fact>> views = new Views<>();
+  // the same facts, grouped by predicate name and arity, then by origin
+  private HashMap<PredicateKey, Relation> index;
+  // facts shared with other sets, never modified, disjoint from the facts of this set
+  private FactSet base;
+  // the number of frozen layers below this set
+  private int layers;
+  // for a layer made by compact(), the facts stored in columns instead of facts and index
+  private HashMap<PredicateKey, ColumnarRelation> columnar;
 
   public FactSet() {
     facts = new HashMap<>();
+    index = new HashMap<>();
   }
 
   public FactSet(Origin o, HashSet<Fact> factSet) {
     facts = new HashMap<>();
+    index = new HashMap<>();
     facts.put(o, factSet);
+    for (Fact fact : factSet) {
+      addToIndex(o, fact);
+    }
   }
 
+  /**
+   * Returns the facts grouped by origin
+   *
+   * <p>the returned map must not be modified directly, use add or merge instead so that the
+   * predicate index stays in sync. If the set shares facts with a set it was cloned from, this
+   * is a copy of all of them
+   */
   public HashMap<Origin, HashSet<Fact>> facts() {
-    return this.facts;
+    if (this.base == null) {
+      return this.facts;
+    }
+    HashMap<Origin, HashSet<Fact>> result = new HashMap<>();
+    for (FactSet layer = this; layer != null; layer = layer.base) {
+      for (Map.Entry<Origin, HashSet<Fact>> entry : layer.facts.entrySet()) {
+        result.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).addAll(entry.getValue());
+      }
+      if (layer.columnar != null) {
+        layer
+            .columnarStream()
+            .forEach(t -> result.computeIfAbsent(t._1, k -> new HashSet<>()).add(t._2));
+      }
+    }
+    return result;
   }
 
   public void add(Origin origin, Fact fact) {
-    if (!facts.containsKey(origin)) {
-      facts.put(origin, new HashSet<>());
+    if (this.base != null && this.base.contains(origin, fact)) {
+      return;
+    }
+    HashSet<Fact> h = facts.get(origin);
+    if (h == null) {
+      h = new HashSet<>();
+      facts.put(origin, h);
+      views.added(origin, h);
+    }
+    if (h.add(fact)) {
+      addToIndex(origin, fact);
+    }
+  }
+
+  private void addToIndex(Origin origin, Fact fact) {
+    index
+        .computeIfAbsent(new PredicateKey(fact.predicate()), k -> new Relation())
+        .add(origin, fact);
+  }
+
+  public void clear() {
+    facts.clear();
+    index.clear();
+    views = new Views<>();
+    base = null;
+    layers = 0;
+    columnar = null;
+  }
+
+  public boolean contains(Origin origin, Fact fact) {
+    if (columnar != null) {
+      ColumnarRelation relation = columnar.get(new PredicateKey(fact.predicate()));
+      if (relation != null && relation.contains(origin, fact)) {
+        return true;
+      }
     }
-    facts.get(origin).add(fact);
+    HashSet<Fact> h = facts.get(origin);
+    return (h != null && h.contains(fact)) || (base != null && base.contains(origin, fact));
   }
 
   public int size() {
-    int size = 0;
+    int size = base == null ? 0 : base.size();
     for (HashSet<Fact> h : facts.values()) {
       size += h.size();
     }
+    if (columnar != null) {
+      for (ColumnarRelation relation : columnar.values()) {
+        size += relation.size();
+      }
+    }
 
     return size;
   }
 
-  public FactSet clone() {
-    FactSet newFacts = new FactSet();
+  /**
+   * Returns the number of facts with the same name and arity as the predicate, whatever their
+   * origin
+   *
+   * <p>used to estimate the cost of joins, see {@link JoinPlan}
+   */
+  public int cardinality(Predicate predicate) {
+    PredicateKey key = new PredicateKey(predicate);
+    Relation relation = index.get(key);
+    int cardinality = relation == null ? 0 : relation.size;
+    if (columnar != null && columnar.containsKey(key)) {
+      cardinality += columnar.get(key).size();
+    }
+    return base == null ? cardinality : cardinality + base.cardinality(predicate);
+  }
+
+  /**
+   * Returns a set with the same facts, sharing them with this one
+   *
+   * <p>the facts of this set are moved to a new frozen layer, then both sets use it as their
+   * base. If nothing was added since the last clone, the existing layers are shared as is. This is
+   * synchronized so that a preloaded set can be cloned from concurrent requests
+   */
+  public synchronized FactSet clone() {
+    if (!this.facts.isEmpty()) {
+      FactSet layer = new FactSet();
+      layer.facts = this.facts;
+      layer.index = this.index;
+      layer.views = this.views;
+      layer.base = this.base;
+      layer.layers = this.layers;
+      if (layer.layers >= MAX_LAYERS) {
+        layer = layer.flatten();
+      }
 
-    for (Map.Entry<Origin, HashSet<Fact>> entry : this.facts.entrySet()) {
-      HashSet<Fact> h = new HashSet<>(entry.getValue());
-      newFacts.facts.put(entry.getKey(), h);
+      this.facts = new HashMap<>();
+      this.index = new HashMap<>();
+      this.views = new Views<>();
+      this.base = layer;
+      this.layers = layer.layers + 1;
     }
 
+    FactSet newFacts = new FactSet();
+    newFacts.base = this.base;
+    newFacts.layers = this.layers;
     return newFacts;
   }
 
+  // copies the facts of all the layers in a single set, on top of the first compacted layer
+  private FactSet flatten() {
+    FactSet flat = new FactSet();
+    FactSet layer = this;
+    for (; layer != null && layer.columnar == null; layer = layer.base) {
+      for (Map.Entry<Origin, HashSet<Fact>> entry : layer.facts.entrySet()) {
+        for (Fact fact : entry.getValue()) {
+          flat.add(entry.getKey(), fact);
+        }
+      }
+    }
+    if (layer != null) {
+      flat.base = layer;
+      flat.layers = layer.layers + 1;
+    }
+    return flat;
+  }
+
+  /**
+   * Moves all the facts to a single frozen layer stored in columns of primitive values
+   *
+   * <p>this is meant for a large set of facts loaded once, then cloned for each request: the
+   * compacted layer takes a fraction of the memory, and scanning it compares the encoded terms
+   * without building the facts that do not match, at the cost of building the ones that do. Facts
+   * added after this are stored as usual, on top of that layer
+   */
+  public synchronized void compact() {
+    FactSet layer = new FactSet();
+    layer.columnar = new HashMap<>();
+    for (Map.Entry<Origin, HashSet<Fact>> entry : facts().entrySet()) {
+      for (Fact fact : entry.getValue()) {
+        Predicate predicate = fact.predicate();
+        layer
+            .columnar
+            .computeIfAbsent(
+                new PredicateKey(predicate),
+                k -> new ColumnarRelation(predicate.name(), predicate.terms().size()))
+            .add(entry.getKey(), fact);
+      }
+    }
+
+    this.facts = new HashMap<>();
+    this.index = new HashMap<>();
+    this.views = new Views<>();
+    this.base = layer;
+    this.layers = 1;
+  }
+
+  private Stream<Tuple2<Origin, Fact>> columnarStream() {
+    return columnar.values().stream().flatMap(ColumnarRelation::stream);
+  }
+
   public void merge(FactSet other) {
-    for (Map.Entry<Origin, HashSet<Fact>> entry : other.facts.entrySet()) {
-      if (!facts.containsKey(entry.getKey())) {
-        facts.put(entry.getKey(), entry.getValue());
-      } else {
-        facts.get(entry.getKey()).addAll(entry.getValue());
+    for (Map.Entry<Origin, HashSet<Fact>> entry : other.facts().entrySet()) {
+      for (Fact fact : entry.getValue()) {
+        add(entry.getKey(), fact);
       }
     }
   }
 
-  public Stream stream(TrustedOrigins blockIds) {
-    return facts.entrySet().stream()
-        .filter(
-            entry -> {
-              Origin o = entry.getKey();
-              return blockIds.contains(o);
-            })
-        .flatMap(
-            entry -> entry.getValue().stream().map(fact -> new Tuple2<>(entry.getKey(), fact)));
+  /**
+   * Merges the facts from another set, and returns the facts that were not already present
+   *
+   * <p>this is the delta used by semi-naive evaluation
+   */
+  public FactSet mergeDelta(FactSet other) {
+    FactSet delta = new FactSet();
+    for (Map.Entry<Origin, HashSet<Fact>> entry : other.facts().entrySet()) {
+      HashSet<Fact> h = facts.get(entry.getKey());
+      for (Fact fact : entry.getValue()) {
+        if (base != null && base.contains(entry.getKey(), fact)) {
+          continue;
+        }
+        if (h == null) {
+          h = new HashSet<>();
+          facts.put(entry.getKey(), h);
+          views.added(entry.getKey(), h);
+        }
+        if (h.add(fact)) {
+          addToIndex(entry.getKey(), fact);
+          delta.add(entry.getKey(), fact);
+        }
+      }
+    }
+    return delta;
+  }
+
+  public Stream<Tuple2<Origin, Fact>> stream(TrustedOrigins blockIds) {
+    Stream<Tuple2<Origin, Fact>> local =
+        views.get(blockIds, facts).stream()
+            .flatMap(t -> t._2.stream().map(fact -> new Tuple2<>(t._1, fact)));
+    if (columnar != null) {
+      local = Stream.concat(columnarStream().filter(t -> blockIds.contains(t._1)), local);
+    }
+    return base == null ? local : Stream.concat(base.stream(blockIds), local);
+  }
+
+  /**
+   * Returns the facts from trusted origins that have the same name and arity as the predicate
+   *
+   * <p>this only looks at the facts indexed under that name and arity, instead of scanning the
+   * whole set. If some of the predicate's terms are not variables, and there are enough facts for
+   * it to be worth it, the facts are looked up in a per column index instead, built the first time
+   * that column is queried. The returned facts are not guaranteed to match the predicate, only to
+   * be a superset of the ones that do
+   *
+   * <p>a column is only used if all its terms have the same type as the term looked up, so that
+   * when a term comes from an equality expression instead of the rule's body (see {@link
+   * Combinator.Filter}), no fact that would make that expression fail is skipped
+   */
+  public Stream<Tuple2<Origin, Fact>> stream(TrustedOrigins blockIds, Predicate predicate) {
+    Stream<Tuple2<Origin, Fact>> local = localStream(blockIds, predicate);
+    return base == null ? local : Stream.concat(base.stream(blockIds, predicate), local);
+  }
+
+  private Stream<Tuple2<Origin, Fact>> localStream(TrustedOrigins blockIds, Predicate predicate) {
+    if (columnar != null) {
+      ColumnarRelation relation = columnar.get(new PredicateKey(predicate));
+      return relation == null ? Stream.empty() : relation.stream(blockIds, predicate);
+    }
+    Relation relation = index.get(new PredicateKey(predicate));
+    if (relation == null) {
+      return Stream.empty();
+    }
+    List<Tuple2<Origin, Fact>> candidates = relation.candidates(predicate);
+    if (candidates != null) {
+      return candidates.stream().filter(t -> blockIds.contains(t._1));
+    }
+    return relation.views.get(blockIds, relation.byOrigin).stream()
+        .flatMap(t -> t._2.stream().map(fact -> new Tuple2<>(t._1, fact)));
+  }
+
+  /**
+   * Returns the facts from the origins accepted by the filter
+   *
+   * <p>unlike {@link #facts()}, this does not copy the facts shared with other sets, and only
+   * builds the facts of a compacted layer that come from an accepted origin
+   */
+  public Stream<Tuple2<Origin, Fact>> stream(java.util.function.Predicate<Origin> origins) {
+    Stream<Tuple2<Origin, Fact>> local =
+        facts.entrySet().stream()
+            .filter(entry -> origins.test(entry.getKey()))
+            .flatMap(
+                entry -> entry.getValue().stream().map(fact -> new Tuple2<>(entry.getKey(), fact)));
+    if (columnar != null) {
+      local =
+          Stream.concat(
+              columnar.values().stream().flatMap(relation -> relation.stream(origins)), local);
+    }
+    return base == null ? local : Stream.concat(base.stream(origins), local);
+  }
+
+  /**
+   * Returns the names and arities of the facts from the origins accepted by the filter
+   *
+   * <p>this only reads the origins recorded in the predicate index, without going through the
+   * facts
+   */
+  HashSet<PredicateKey> predicates(java.util.function.Predicate<Origin> origins) {
+    HashSet<PredicateKey> predicates = base == null ? new HashSet<>() : base.predicates(origins);
+    for (Map.Entry<PredicateKey, Relation> entry : index.entrySet()) {
+      for (Origin origin : entry.getValue().byOrigin.keySet()) {
+        if (origins.test(origin)) {
+          predicates.add(entry.getKey());
+          break;
+        }
+      }
+    }
+    if (columnar != null) {
+      for (Map.Entry<PredicateKey, ColumnarRelation> entry : columnar.entrySet()) {
+        if (entry.getValue().hasOrigin(origins)) {
+          predicates.add(entry.getKey());
+        }
+      }
+    }
+    return predicates;
   }
 
   public Stream<Fact> stream() {
-    return facts.entrySet().stream().flatMap(entry -> entry.getValue().stream());
+    Stream<Fact> local = facts.entrySet().stream().flatMap(entry -> entry.getValue().stream());
+    if (columnar != null) {
+      local = Stream.concat(columnarStream().map(t -> t._2), local);
+    }
+    return base == null ? local : Stream.concat(base.stream(), local);
   }
 
   @Override
@@ -85,18 +379,18 @@ public final class FactSet {
 
     FactSet factSet = (FactSet) o;
 
-    return facts.equals(factSet.facts);
+    return facts().equals(factSet.facts());
   }
 
   @Override
   public int hashCode() {
-    return facts.hashCode();
+    return facts().hashCode();
   }
 
   @Override
   public String toString() {
     StringBuilder res = new StringBuilder("FactSet {");
-    for (Map.Entry<Origin, HashSet<Fact>> entry : this.facts.entrySet()) {
+    for (Map.Entry<Origin, HashSet<Fact>> entry : this.facts().entrySet()) {
       res.append("\n\t").append(entry.getKey()).append("[");
       for (Fact fact : entry.getValue()) {
         res.append("\n\t\t").append(fact);
@@ -107,4 +401,140 @@ public final class FactSet {
 
     return res.toString();
   }
+
+  /** The facts sharing a predicate name and arity */
+  private static final class Relation {
+    // below this size, scanning the facts is cheaper than building and querying a column index
+    private static final int COLUMN_INDEX_THRESHOLD = 16;
+    // the type of a column holding terms of different types
+    private static final Class<?> MIXED = Term.class;
+
+    private final HashMap<Origin, ArrayList<Fact>> byOrigin = new HashMap<>();
+    private final Views<ArrayList<Fact>> views = new Views<>();
+    // for each column, maps a term to the facts holding it in that column, null until first used
+    private final ArrayList<HashMap<Term, ArrayList<Tuple2<Origin, Fact>>>> columns =
+        new ArrayList<>();
+    // for each indexed column, the type of its terms, or MIXED
+    private final ArrayList<Class<?>> columnTypes = new ArrayList<>();
+    private int size = 0;
+
+    void add(Origin origin, Fact fact) {
+      ArrayList<Fact> facts = byOrigin.get(origin);
+      if (facts == null) {
+        facts = new ArrayList<>();
+        byOrigin.put(origin, facts);
+        views.added(origin, facts);
+      }
+      facts.add(fact);
+      size += 1;
+      for (int i = 0; i < columns.size(); i++) {
+        HashMap<Term, ArrayList<Tuple2<Origin, Fact>>> column = columns.get(i);
+        if (column != null) {
+          addToColumn(i, column, origin, fact);
+        }
+      }
+    }
+
+    private void addToColumn(
+        int i, HashMap<Term, ArrayList<Tuple2<Origin, Fact>>> column, Origin origin, Fact fact) {
+      Term term = fact.predicate().terms().get(i);
+      column.computeIfAbsent(term, k -> new ArrayList<>()).add(new Tuple2<>(origin, fact));
+      Class<?> type = columnTypes.get(i);
+      if (type == null) {
+        columnTypes.set(i, term.getClass());
+      } else if (type != term.getClass()) {
+        columnTypes.set(i, MIXED);
+      }
+    }
+
+    /**
+     * Returns the facts holding the predicate's non variable terms, using the most selective
+     * column, or null if the predicate has no such term or the relation is too small to be indexed
+     *
+     * <p>synchronized since it can build column indexes, while rules evaluated in parallel read
+     * the same facts
+     */
+    synchronized List<Tuple2<Origin, Fact>> candidates(Predicate predicate) {
+      if (size < COLUMN_INDEX_THRESHOLD) {
+        return null;
+      }
+      List<Term> terms = predicate.terms();
+      List<Tuple2<Origin, Fact>> best = null;
+      for (int i = 0; i < terms.size(); i++) {
+        Term term = terms.get(i);
+        if (term instanceof Term.Variable) {
+          continue;
+        }
+        HashMap<Term, ArrayList<Tuple2<Origin, Fact>>> column = column(i);
+        if (columnTypes.get(i) != term.getClass()) {
+          continue;
+        }
+        ArrayList<Tuple2<Origin, Fact>> matching = column.get(term);
+        if (matching == null) {
+          return Collections.emptyList();
+        }
+        if (best == null || matching.size() < best.size()) {
+          best = matching;
+        }
+      }
+      return best;
+    }
+
+    private HashMap<Term, ArrayList<Tuple2<Origin, Fact>>> column(int i) {
+      while (columns.size() <= i) {
+        columns.add(null);
+        columnTypes.add(null);
+      }
+      HashMap<Term, ArrayList<Tuple2<Origin, Fact>>> column = columns.get(i);
+      if (column == null) {
+        column = new HashMap<>();
+        for (Map.Entry<Origin, ArrayList<Fact>> entry : byOrigin.entrySet()) {
+          for (Fact fact : entry.getValue()) {
+            addToColumn(i, column, entry.getKey(), fact);
+          }
+        }
+        columns.set(i, column);
+      }
+      return column;
+    }
+  }
+
+  /**
+   * For each scope, the buckets of a map by origin whose origin the scope trusts
+   *
+   * <p>a view is computed the first time a scope is scanned, then extended when a bucket is added
+   * for a new origin, so scans skip the untrusted origins without testing each of them again. The
+   * buckets are shared with the map, so adding facts to an existing origin needs no update. At
+   * most {@link #MAX_VIEWS} scopes are cached, the others are computed for each scan
+   */
+  private static final class Views<B> {
+    private static final int MAX_VIEWS = 32;
+
+    private final HashMap<TrustedOrigins, ArrayList<Tuple2<Origin, B>>> views = new HashMap<>();
+
+    // synchronized since frozen layers are scanned by concurrent requests
+    synchronized List<Tuple2<Origin, B>> get(TrustedOrigins scope, Map<Origin, B> buckets) {
+      ArrayList<Tuple2<Origin, B>> view = views.get(scope);
+      if (view == null) {
+        view = new ArrayList<>();
+        for (Map.Entry<Origin, B> entry : buckets.entrySet()) {
+          if (scope.contains(entry.getKey())) {
+            view.add(new Tuple2<>(entry.getKey(), entry.getValue()));
+          }
+        }
+        if (views.size() < MAX_VIEWS) {
+          views.put(scope, view);
+        }
+      }
+      return view;
+    }
+
+    synchronized void added(Origin origin, B bucket) {
+      for (Map.Entry<TrustedOrigins, ArrayList<Tuple2<Origin, B>>> entry : views.entrySet()) {
+        if (entry.getKey().contains(origin)) {
+          entry.getValue().add(new Tuple2<>(origin, bucket));
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,92 @@
+package org.biscuitsec.biscuit.datalog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hash-consing of terms, predicates and facts
+ *
+ * <p>equal values returned by the interner are usually the same instance, so comparing them is a
+ * reference check, and their hash, cached by the predicates and the set and byte terms, is
+ * computed once. Booleans and small integers always map to the singletons of {@link Term.Bool}
+ * and {@link Term.Integer}.
+ *
+ * <p>like the origins (see {@link Origin}), values are interned in small direct mapped caches
+ * instead of tables holding all of them: a value replaces the previous one in its slot, so the
+ * memory used stays bounded and interning cannot leak values from one request to the next. The
+ * caches are racy but safe, since the values are immutable: at worst an equal instance is kept
+ * instead of another one.
+ */
+public final class Interner {
+  private static final int CACHE_BITS = 12;
+  private static final Term[] TERMS = new Term[1 << CACHE_BITS];
+  private static final Predicate[] PREDICATES = new Predicate[1 << CACHE_BITS];
+  private static final Fact[] FACTS = new Fact[1 << CACHE_BITS];
+
+  private Interner() {}
+
+  private static int slot(int hash) {
+    return (hash * 0x9E3779B9) >>> (32 - CACHE_BITS);
+  }
+
+  /** Returns a term equal to this one, usually shared with other equal terms */
+  public static Term term(final Term term) {
+    if (term instanceof Term.Bool) {
+      return Term.Bool.of(((Term.Bool) term).value());
+    }
+    if (term instanceof Term.Integer) {
+      long value = ((Term.Integer) term).value();
+      Term.Integer shared = Term.Integer.of(value);
+      // small integers are singletons, the other ones are new instances
+      if (shared == Term.Integer.of(value)) {
+        return shared;
+      }
+    }
+
+    int slot = slot(term.hashCode());
+    Term cached = TERMS[slot];
+    if (cached != null && cached.equals(term)) {
+      return cached;
+    }
+    TERMS[slot] = term;
+    return term;
+  }
+
+  /** Returns a predicate equal to this one, with interned terms */
+  public static Predicate predicate(final Predicate predicate) {
+    int slot = slot(predicate.hashCode());
+    Predicate cached = PREDICATES[slot];
+    if (cached != null && cached.equals(predicate)) {
+      return cached;
+    }
+
+    List<Term> terms = predicate.terms();
+    List<Term> interned = null;
+    for (int i = 0; i < terms.size(); i++) {
+      Term term = term(terms.get(i));
+      if (term != terms.get(i)) {
+        if (interned == null) {
+          interned = new ArrayList<>(terms);
+        }
+        interned.set(i, term);
+      }
+    }
+    Predicate result = interned == null ? predicate : new Predicate(predicate.name(), interned);
+    PREDICATES[slot] = result;
+    return result;
+  }
+
+  /** Returns a fact equal to this one, with an interned predicate */
+  public static Fact fact(final Fact fact) {
+    int slot = slot(fact.hashCode());
+    Fact cached = FACTS[slot];
+    if (cached != null && cached.equals(fact)) {
+      return cached;
+    }
+
+    Predicate predicate = predicate(fact.predicate());
+    Fact result = predicate == fact.predicate() ? fact : new Fact(predicate);
+    FACTS[slot] = result;
+    return result;
+  }
+}
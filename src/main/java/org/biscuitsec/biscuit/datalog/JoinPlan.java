@@ -0,0 +1,160 @@
+package org.biscuitsec.biscuit.datalog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The order in which the body predicates of a rule are joined
+ *
+ * <p>the combinator iterates over the facts of the first predicate, then for each of them over the
+ * facts of the second one, etc, so putting first the predicates that have few candidate facts
+ * avoids generating large intermediate products that would be filtered later. The plan is chosen
+ * greedily: at each step, the predicate with the lowest estimated number of candidates is picked,
+ * where each argument that is a constant or a variable bound by the previous predicates divides
+ * the number of facts by a fixed selectivity. Ties keep the order of the rule body.
+ *
+ * <p>the order only changes how the matches are enumerated, not which ones are found
+ */
+public final class JoinPlan {
+  // estimated fraction of facts remaining for each bound argument
+  private static final double SELECTIVITY = 0.1;
+
+  private final List<Integer> order;
+  private final List<Double> estimates;
+
+  private JoinPlan(List<Integer> order, List<Double> estimates) {
+    this.order = order;
+    this.estimates = estimates;
+  }
+
+  /** Keeps the body predicates in their source order */
+  public static JoinPlan sourceOrder(int size) {
+    List<Integer> order = new ArrayList<>(size);
+    List<Double> estimates = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      order.add(i);
+      estimates.add(Double.NaN);
+    }
+    return new JoinPlan(order, estimates);
+  }
+
+  /**
+   * Orders the body predicates using the number of facts each of them can be matched against
+   *
+   * @param body the body predicates of the rule
+   * @param cardinalities for each body predicate, the number of facts with the same name and arity
+   *     in the source it reads from
+   */
+  public static JoinPlan plan(List<Predicate> body, List<Integer> cardinalities) {
+    final int size = body.size();
+    List<Integer> order = new ArrayList<>(size);
+    List<Double> estimates = new ArrayList<>(size);
+    boolean[] placed = new boolean[size];
+    Set<Long> bound = new HashSet<>();
+
+    for (int step = 0; step < size; step++) {
+      int best = -1;
+      double bestEstimate = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < size; i++) {
+        if (placed[i]) {
+          continue;
+        }
+        double estimate = estimate(body.get(i), cardinalities.get(i), bound);
+        if (best == -1 || estimate < bestEstimate) {
+          best = i;
+          bestEstimate = estimate;
+        }
+      }
+
+      placed[best] = true;
+      order.add(best);
+      estimates.add(bestEstimate);
+      for (Term term : body.get(best).terms()) {
+        if (term instanceof Term.Variable) {
+          bound.add(((Term.Variable) term).value());
+        }
+      }
+    }
+
+    return new JoinPlan(order, estimates);
+  }
+
+  private static double estimate(Predicate predicate, int cardinality, Set<Long> bound) {
+    double estimate = cardinality;
+    for (Term term : predicate.terms()) {
+      if (!(term instanceof Term.Variable) || bound.contains(((Term.Variable) term).value())) {
+        estimate *= SELECTIVITY;
+      }
+    }
+    return estimate;
+  }
+
+  /** The indexes of the body predicates, in the order they are joined */
+  public List<Integer> order() {
+    return Collections.unmodifiableList(order);
+  }
+
+  /**
+   * Estimates the number of candidate facts the join goes through: those of the first predicate,
+   * plus those of the second one for each of them, etc
+   *
+   * <p>NaN for a plan in source order, which has no estimates
+   */
+  public double cost() {
+    double cost = 0;
+    double partialMatches = 1;
+    for (double estimate : estimates) {
+      partialMatches *= estimate;
+      cost += partialMatches;
+    }
+    return cost;
+  }
+
+  /** Rearranges a list with one element per body predicate in the join order */
+  public <T> List<T> reorder(List<T> list) {
+    List<T> result = new ArrayList<>(list.size());
+    for (int i : order) {
+      result.add(list.get(i));
+    }
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    JoinPlan joinPlan = (JoinPlan) o;
+
+    return order.equals(joinPlan.order);
+  }
+
+  @Override
+  public int hashCode() {
+    return order.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder res = new StringBuilder("JoinPlan[");
+    for (int i = 0; i < order.size(); i++) {
+      if (i > 0) {
+        res.append(", ");
+      }
+      res.append(order.get(i));
+      if (!estimates.get(i).isNaN()) {
+        res.append(" (~").append((long) Math.ceil(estimates.get(i))).append(")");
+      }
+    }
+    res.append("]");
+
+    return res.toString();
+  }
+}
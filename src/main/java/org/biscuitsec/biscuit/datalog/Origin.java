@@ -1,59 +1,214 @@
 package org.biscuitsec.biscuit.datalog;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
 
+/**
+ * The set of blocks a fact was generated from
+ *
+ * <p>this is an immutable bitset: block ids 0 to 62 are stored in the bits of a long, along with
+ * the authorizer (block id Long.MAX_VALUE) which uses the last bit, and higher block ids overflow
+ * to an array of longs. Union and containment are then bitwise operations. So that the array
+ * stays small, block ids from 4159 onwards are instead kept in a sorted array of ids: any
+ * non-negative block id is accepted.
+ *
+ * <p>origins that fit in a single long are interned in a small cache, so that the same set of
+ * blocks is usually represented by the same instance.
+ */
 public final class Origin {
-  private final HashSet<Long> blockIds;
+  private static final int AUTHORIZER_BIT = 63;
+  private static final int INLINE_BLOCKS = 63;
+  // the first block id kept in the sparse array, after 64 words of overflow
+  private static final long SPARSE_BLOCKS = INLINE_BLOCKS + 64 * 64;
+
+  private static final int CACHE_BITS = 10;
+  private static final Origin[] CACHE = new Origin[1 << CACHE_BITS];
+
+  // blocks 0 to 62, and the authorizer in bit 63
+  private final long mask;
+  // blocks from 63 onwards, null if there are none, otherwise without trailing zero words
+  private final long[] overflow;
+  // block ids from SPARSE_BLOCKS onwards, sorted, null if there are none
+  private final long[] sparse;
 
   public Origin() {
-    this.blockIds = new HashSet<>();
+    this(0L, null, null);
   }
 
   public Origin(Long i) {
-    this.blockIds = new HashSet<>();
-    this.blockIds.add(i);
+    this(i.longValue());
   }
 
   public Origin(int i) {
-    this.blockIds = new HashSet<>();
-    this.blockIds.add((long) i);
+    this((long) i);
   }
 
-  public static Origin authorizer() {
-    return new Origin(Long.MAX_VALUE);
+  private Origin(long i) {
+    if (i < 0) {
+      throw new IllegalArgumentException("invalid block id: " + i);
+    }
+    if (i == Long.MAX_VALUE) {
+      this.mask = 1L << AUTHORIZER_BIT;
+      this.overflow = null;
+      this.sparse = null;
+    } else if (i < INLINE_BLOCKS) {
+      this.mask = 1L << i;
+      this.overflow = null;
+      this.sparse = null;
+    } else if (i < SPARSE_BLOCKS) {
+      long index = i - INLINE_BLOCKS;
+      this.mask = 0L;
+      this.overflow = new long[(int) (index >>> 6) + 1];
+      this.overflow[(int) (index >>> 6)] = 1L << index;
+      this.sparse = null;
+    } else {
+      this.mask = 0L;
+      this.overflow = null;
+      this.sparse = new long[] {i};
+    }
+  }
+
+  private Origin(long mask, long[] overflow, long[] sparse) {
+    this.mask = mask;
+    this.overflow = overflow;
+    this.sparse = sparse;
   }
 
-  public void add(int i) {
-    blockIds.add((long) i);
+  private static Origin of(long mask, long[] overflow, long[] sparse) {
+    if (overflow != null) {
+      int length = overflow.length;
+      while (length > 0 && overflow[length - 1] == 0) {
+        length -= 1;
+      }
+      if (length == 0) {
+        overflow = null;
+      } else if (length < overflow.length) {
+        overflow = Arrays.copyOf(overflow, length);
+      }
+    }
+    if (overflow != null || sparse != null) {
+      return new Origin(mask, overflow, sparse);
+    }
+
+    // racy but safe, since origins are immutable: at worst an equal instance is created again
+    int slot = (Long.hashCode(mask) * 0x9E3779B9) >>> (32 - CACHE_BITS);
+    Origin cached = CACHE[slot];
+    if (cached != null && cached.mask == mask) {
+      return cached;
+    }
+    Origin origin = new Origin(mask, null, null);
+    CACHE[slot] = origin;
+    return origin;
   }
 
-  public void add(long i) {
-    blockIds.add(i);
+  /** Returns the origin containing this block only */
+  public static Origin of(long blockId) {
+    Origin origin = new Origin(blockId);
+    return origin.overflow == null && origin.sparse == null ? of(origin.mask, null, null) : origin;
   }
 
-  public boolean addAll(final Collection<Long> newBlockIds) {
-    return this.blockIds.addAll(newBlockIds);
+  public static Origin authorizer() {
+    return of(Long.MAX_VALUE);
+  }
+
+  /** Returns an origin containing these blocks and the other block */
+  public Origin with(long blockId) {
+    return union(new Origin(blockId));
+  }
+
+  /** Returns an origin containing these blocks and the other blocks */
+  public Origin withAll(final Collection<Long> blockIds) {
+    Origin origin = this;
+    for (long blockId : blockIds) {
+      origin = origin.with(blockId);
+    }
+    return origin;
   }
 
   public Origin union(Origin other) {
-    Origin o = this.clone();
-    o.blockIds.addAll(other.blockIds);
-    return o;
+    if (other.containsAll(this)) {
+      return other;
+    }
+    if (this.containsAll(other)) {
+      return this;
+    }
+    if (this.overflow == null && other.overflow == null) {
+      return of(this.mask | other.mask, null, union(this.sparse, other.sparse));
+    }
+
+    long[] a = this.overflow == null ? new long[0] : this.overflow;
+    long[] b = other.overflow == null ? new long[0] : other.overflow;
+    long[] overflow = Arrays.copyOf(a.length >= b.length ? a : b, Math.max(a.length, b.length));
+    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+      overflow[i] = a[i] | b[i];
+    }
+    return of(this.mask | other.mask, overflow, union(this.sparse, other.sparse));
   }
 
-  public boolean containsAll(Origin other) {
-    return this.blockIds.containsAll(other.blockIds);
+  // merges two sorted arrays of ids, either one can be null
+  private static long[] union(long[] a, long[] b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    long[] result = new long[a.length + b.length];
+    int i = 0;
+    int j = 0;
+    int length = 0;
+    while (i < a.length || j < b.length) {
+      if (j == b.length || (i < a.length && a[i] < b[j])) {
+        result[length++] = a[i++];
+      } else if (i == a.length || b[j] < a[i]) {
+        result[length++] = b[j++];
+      } else {
+        result[length++] = a[i++];
+        j++;
+      }
+    }
+    return length == result.length ? result : Arrays.copyOf(result, length);
   }
 
-  @Override
-  protected Origin clone() {
-    final Origin newOrigin = new Origin();
-    newOrigin.addAll(this.blockIds);
-    return newOrigin;
+  // true if the sorted array a contains all the ids of the sorted array b, either one can be null
+  private static boolean containsAll(long[] a, long[] b) {
+    if (b == null) {
+      return true;
+    }
+    if (a == null || a.length < b.length) {
+      return false;
+    }
+    int i = 0;
+    for (long id : b) {
+      while (i < a.length && a[i] < id) {
+        i++;
+      }
+      if (i == a.length || a[i] != id) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean containsAll(Origin other) {
+    if ((other.mask & ~this.mask) != 0 || !containsAll(this.sparse, other.sparse)) {
+      return false;
+    }
+    if (other.overflow == null) {
+      return true;
+    }
+    if (this.overflow == null || this.overflow.length < other.overflow.length) {
+      return false;
+    }
+    for (int i = 0; i < other.overflow.length; i++) {
+      if ((other.overflow[i] & ~this.overflow[i]) != 0) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
@@ -67,20 +222,45 @@ public final class Origin {
 
     Origin origin = (Origin) o;
 
-    return Objects.equals(blockIds, origin.blockIds);
+    return mask == origin.mask
+        && Arrays.equals(overflow, origin.overflow)
+        && Arrays.equals(sparse, origin.sparse);
   }
 
   @Override
   public int hashCode() {
-    return blockIds != null ? blockIds.hashCode() : 0;
+    return 31 * (31 * Long.hashCode(mask) + Arrays.hashCode(overflow)) + Arrays.hashCode(sparse);
   }
 
   @Override
   public String toString() {
-    return "Origin{inner=" + blockIds + '}';
+    return "Origin{inner=" + blockIds() + '}';
   }
 
   public Set<Long> blockIds() {
-    return Collections.unmodifiableSet(this.blockIds);
+    TreeSet<Long> blockIds = new TreeSet<>();
+    for (int i = 0; i < INLINE_BLOCKS; i++) {
+      if ((mask & (1L << i)) != 0) {
+        blockIds.add((long) i);
+      }
+    }
+    if (overflow != null) {
+      for (int i = 0; i < overflow.length; i++) {
+        for (int j = 0; j < 64; j++) {
+          if ((overflow[i] & (1L << j)) != 0) {
+            blockIds.add(INLINE_BLOCKS + ((long) i << 6) + j);
+          }
+        }
+      }
+    }
+    if (sparse != null) {
+      for (long blockId : sparse) {
+        blockIds.add(blockId);
+      }
+    }
+    if ((mask & (1L << AUTHORIZER_BIT)) != 0) {
+      blockIds.add(Long.MAX_VALUE);
+    }
+    return Collections.unmodifiableSet(blockIds);
   }
 }
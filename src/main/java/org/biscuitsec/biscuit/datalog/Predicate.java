@@ -13,9 +13,17 @@ import java.util.Objects;
 import java.util.stream.Collectors;
 import org.biscuitsec.biscuit.error.Error;
 
+/**
+ * A predicate name applied to a list of terms
+ *
+ * <p>the list of terms must not be modified once the predicate is created, since its hash is
+ * computed once and cached
+ */
 public final class Predicate implements Serializable {
   private final long name;
   private final List<Term> terms;
+  // computed on first use, 0 until then
+  private transient int hash;
 
   public long name() {
     return this.name;
@@ -64,12 +72,19 @@ public final class Predicate implements Serializable {
       return false;
     }
     Predicate predicate = (Predicate) o;
-    return name == predicate.name && Objects.equals(terms, predicate.terms);
+    return name == predicate.name
+        && hashCode() == predicate.hashCode()
+        && Objects.equals(terms, predicate.terms);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(name, terms);
+    int h = hash;
+    if (h == 0) {
+      h = 31 * Long.hashCode(name) + (terms == null ? 0 : terms.hashCode());
+      hash = h;
+    }
+    return h;
   }
 
   @Override
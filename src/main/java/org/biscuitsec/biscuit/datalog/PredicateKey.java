@@ -0,0 +1,31 @@
+package org.biscuitsec.biscuit.datalog;
+
+/** A predicate's name and arity, the facts that can match it all have the same */
+final class PredicateKey {
+  private final long name;
+  private final int arity;
+
+  PredicateKey(Predicate predicate) {
+    this.name = predicate.name();
+    this.arity = predicate.terms().size();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    PredicateKey that = (PredicateKey) o;
+
+    return name == that.name && arity == that.arity;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Long.hashCode(name) + arity;
+  }
+}
@@ -5,22 +5,16 @@ import static io.vavr.API.Right;
 
 import biscuit.format.schema.Schema;
 import io.vavr.Tuple2;
-import io.vavr.Tuple3;
 import io.vavr.control.Either;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
-import java.util.Spliterator;
-import java.util.Spliterators;
+import java.util.function.Function;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 import org.biscuitsec.biscuit.datalog.expressions.Expression;
 import org.biscuitsec.biscuit.error.Error;
 
@@ -29,6 +23,7 @@ public final class Rule implements Serializable {
   private final List<Predicate> body;
   private final List<Expression> expressions;
   private final List<Scope> scopes;
+  private transient CompiledRule compiled;
 
   public Predicate head() {
     return this.head;
@@ -50,141 +45,368 @@ public final class Rule implements Serializable {
       final Supplier<Stream<Tuple2<Origin, Fact>>> factsSupplier,
       Long ruleOrigin,
       SymbolTable symbolTable) {
-    MatchedVariables variables = variablesSet();
-
-    Combinator combinator = new Combinator(variables, this.body, factsSupplier, symbolTable);
-    Spliterator<Tuple2<Origin, Map<Long, Term>>> splitItr =
-        Spliterators.spliteratorUnknownSize(combinator, Spliterator.ORDERED);
-    Stream<Tuple2<Origin, Map<Long, Term>>> stream = StreamSupport.stream(splitItr, false);
-
-    // somehow we have inference errors when writing this as a lambda
-    return stream
-        .map(
-            t -> {
-              Origin origin = t._1;
-              Map<Long, Term> generatedVariables = t._2;
-              TemporarySymbolTable temporarySymbols = new TemporarySymbolTable(symbolTable);
-              for (Expression e : this.expressions) {
-                try {
-                  Term term = e.evaluate(generatedVariables, temporarySymbols);
-
-                  if (term instanceof Term.Bool) {
-                    Term.Bool b = (Term.Bool) term;
-                    if (!b.value()) {
-                      return Either.right(new Tuple3<>(origin, generatedVariables, false));
-                    }
-                    // continue evaluating if true
-                  } else {
-                    return Either.left(new Error.InvalidType());
-                  }
-                } catch (Error error) {
-                  return Either.left(error);
-                }
-              }
-              return Either.right(new Tuple3<>(origin, generatedVariables, true));
-            })
-        // sometimes we need to make the compiler happy
-        .filter(
-            (java.util.function.Predicate<? super Either<? extends Object, ? extends Object>>)
-                res -> res.isRight() & ((Tuple3<Origin, Map<Long, Term>, Boolean>) res.get())._3)
-        .map(
-            res -> {
-              Tuple3<Origin, Map<Long, Term>, Boolean> t =
-                  (Tuple3<Origin, Map<Long, Term>, Boolean>) res.get();
-              Origin origin = t._1;
-              Map<Long, Term> generatedVariables = t._2;
-
-              Predicate p = this.head.clone();
-              for (int index = 0; index < p.terms().size(); index++) {
-                if (p.terms().get(index) instanceof Term.Variable) {
-                  Term.Variable var = (Term.Variable) p.terms().get(index);
-                  if (!generatedVariables.containsKey(var.value())) {
-                    // throw new Error("variables that appear in the head should appear in the body
-                    // as well");
-                    return Either.left(new Error.InternalError());
-                  }
-                  p.terms().set(index, generatedVariables.get(var.value()));
-                }
-              }
+    return apply(
+        Collections.nCopies(
+            this.body.size(),
+            (Function<Predicate, Stream<Tuple2<Origin, Fact>>>) predicate -> factsSupplier.get()),
+        ruleOrigin,
+        symbolTable);
+  }
+
+  /**
+   * Applies the rule, reading the candidate facts for each body predicate from its own source
+   *
+   * <p>used by semi-naive evaluation, where one predicate is matched against the facts produced
+   * by the previous iteration and the other ones against the rest of the world
+   */
+  public Stream<Either<Error, Tuple2<Origin, Fact>>> apply(
+      final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> factsSources,
+      Long ruleOrigin,
+      SymbolTable symbolTable) {
+    return apply(JoinPlan.sourceOrder(this.body.size()), factsSources, ruleOrigin, symbolTable);
+  }
+
+  /**
+   * Applies the rule, joining the body predicates in the order given by the plan
+   *
+   * <p>the fact sources are listed in the order of the body predicates, not in the plan's order.
+   * The facts are generated eagerly, this is an adapter over {@link #apply(JoinPlan, List, Long,
+   * SymbolTable, FactSink)}: if an error happens, it is the last element of the stream.
+   */
+  public Stream<Either<Error, Tuple2<Origin, Fact>>> apply(
+      final JoinPlan plan,
+      final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> factsSources,
+      Long ruleOrigin,
+      SymbolTable symbolTable) {
+    List<Either<Error, Tuple2<Origin, Fact>>> results = new ArrayList<>();
+    try {
+      apply(
+          plan,
+          factsSources,
+          ruleOrigin,
+          symbolTable,
+          (origin, fact) -> results.add(Either.right(new Tuple2<>(origin, fact))));
+    } catch (Error error) {
+      results.add(Either.left(error));
+    }
+    return results.stream();
+  }
+
+  /** Receives the facts generated by a rule */
+  @FunctionalInterface
+  public interface FactSink {
+    /**
+     * Called for each generated fact
+     *
+     * @return false to stop applying the rule
+     */
+    boolean accept(Origin origin, Fact fact) throws Error;
+  }
+
+  /**
+   * Applies the rule, pushing each generated fact to the sink as soon as it is found
+   *
+   * <p>the fact sources are listed in the order of the body predicates, not in the plan's order
+   *
+   * @return false if the sink stopped the application
+   * @throws Error if an expression fails, or returns something else than a boolean
+   */
+  public boolean apply(
+      final JoinPlan plan,
+      final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> factsSources,
+      Long ruleOrigin,
+      SymbolTable symbolTable,
+      FactSink sink)
+      throws Error {
+    return apply(plan, factsSources, ruleOrigin, symbolTable, RunLimits.Budget.UNLIMITED, sink);
+  }
+
+  /**
+   * Applies the rule, pushing each generated fact to the sink, within the budget of a run
+   *
+   * @throws Error.Timeout, Error.Cancelled or Error.TooManyJoinCandidates if the budget runs out
+   */
+  public boolean apply(
+      final JoinPlan plan,
+      final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> factsSources,
+      Long ruleOrigin,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget,
+      FactSink sink)
+      throws Error {
+    final CompiledRule compiled = compiled();
+    final Term[] frame = compiled.newFrame();
+    final CompiledRule.Scratch scratch = new CompiledRule.Scratch(symbolTable);
+    final long start = budget.stats() == null ? 0 : System.nanoTime();
+
+    // the expressions are evaluated by the combinator's filter
+    final Combinator combinator = combinator(frame, plan, factsSources, budget, true, scratch);
+    final Trace trace = budget.trace();
+    if (trace != null) {
+      combinator.traceMatches();
+    }
+    try {
+      // without body predicates, the combinator calls the sink once, without the filter
+      if (this.body.isEmpty() && !compiled.checkExpressions(frame, scratch)) {
+        return true;
+      }
+      return combinator.forEach(
+          origin -> {
+            Fact fact = Interner.fact(new Fact(compiled.head(frame)));
+            if (trace != null) {
+              trace.derived(
+                  origin.with(ruleOrigin),
+                  fact,
+                  ruleOrigin,
+                  this,
+                  bodyOrder(plan, combinator.matched()));
+            }
+            return sink.accept(origin.with(ruleOrigin), fact);
+          });
+    } finally {
+      record(budget, RuleStats.Kind.RULE, ruleOrigin, combinator, scratch, start);
+    }
+  }
+
+  private void record(
+      RunLimits.Budget budget,
+      RuleStats.Kind kind,
+      Long origin,
+      Combinator combinator,
+      CompiledRule.Scratch scratch,
+      long start) {
+    final RuleStats stats = budget.stats();
+    if (stats != null) {
+      stats.record(
+          kind,
+          origin,
+          this,
+          combinator == null ? 0 : combinator.candidates(),
+          combinator == null ? 1 : combinator.bindings(),
+          scratch.evaluations,
+          combinator == null ? 0 : combinator.combinations(),
+          System.nanoTime() - start);
+    }
+  }
+
+  // puts a list in join order back in the order of the body predicates
+  private static <T> List<T> bodyOrder(JoinPlan plan, List<T> joined) {
+    if (joined == null) {
+      return null;
+    }
+    final List<T> result = new ArrayList<>(Collections.nCopies(joined.size(), null));
+    final List<Integer> order = plan.order();
+    for (int i = 0; i < joined.size(); i++) {
+      result.set(order.get(i), joined.get(i));
+    }
+    return result;
+  }
 
-              origin.add(ruleOrigin);
-              return Either.right(new Tuple2<Origin, Fact>(origin, new Fact(p)));
-            });
+  /** Returns the values in the frame by variable symbol, see {@link Trace.QueryResult} */
+  Map<Long, Term> bindings(Term[] frame) {
+    return compiled().bindings(frame);
   }
 
-  private MatchedVariables variablesSet() {
-    final Set<Long> variablesSet = new HashSet<>();
+  /**
+   * Lists one fact source per body predicate, each one only reading the indexed facts that can
+   * match its predicate
+   */
+  List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> factsSources(
+      final FactSet facts, TrustedOrigins scope) {
+    return Collections.nCopies(this.body.size(), predicate -> facts.stream(scope, predicate));
+  }
 
-    for (final Predicate pred : this.body) {
-      variablesSet.addAll(
-          pred.terms().stream()
-              .filter((id) -> id instanceof Term.Variable)
-              .map((id) -> ((Term.Variable) id).value())
-              .collect(Collectors.toSet()));
+  /**
+   * Chooses the join order of the body predicates from the number of facts they can match
+   *
+   * <p>see {@link JoinPlan}
+   */
+  public JoinPlan plan(final FactSet facts) {
+    List<Integer> cardinalities = new ArrayList<>(this.body.size());
+    for (Predicate predicate : this.body) {
+      cardinalities.add(facts.cardinality(predicate));
     }
-    return new MatchedVariables(variablesSet);
+    return JoinPlan.plan(this.body, cardinalities);
+  }
+
+  // when the matches are not all enumerated, the order in which they are found can change
+  // which expression fails or returns an error first, so these keep the source order if
+  // there are expressions
+  private JoinPlan searchPlan(final FactSet facts) {
+    return this.expressions.isEmpty() ? plan(facts) : JoinPlan.sourceOrder(this.body.size());
+  }
+
+  private Combinator combinator(
+      Term[] frame,
+      JoinPlan plan,
+      List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> factsSources,
+      RunLimits.Budget budget,
+      boolean withOrigins,
+      CompiledRule.Scratch scratch) {
+    final List<int[]> slots = plan.reorder(compiled().bodySlots());
+    return new Combinator(
+        frame,
+        plan.reorder(this.body),
+        slots,
+        plan.reorder(factsSources),
+        budget,
+        withOrigins,
+        scratch == null ? null : compiled().filter(slots, frame, scratch));
+  }
+
+  // the rule's body, head and expressions are not modified after creation, so it is compiled
+  // once, on first use
+  private CompiledRule compiled() {
+    CompiledRule compiled = this.compiled;
+    if (compiled == null) {
+      compiled = new CompiledRule(this);
+      this.compiled = compiled;
+    }
+    return compiled;
   }
 
   // do not produce new facts, only find one matching set of facts
+  //
+  // checks and policies only need to know if there is a match, so the head and the origins are
+  // not built, and the search stops at the first binding for which the expressions are true
   public boolean findMatch(
       final FactSet facts, Long origin, TrustedOrigins scope, SymbolTable symbolTable) throws Error {
-    MatchedVariables variables = variablesSet();
-
-    if (this.body.isEmpty()) {
-      return variables.checkExpressions(this.expressions, symbolTable).isDefined();
-    }
+    return findMatch(facts, origin, scope, symbolTable, RunLimits.Budget.UNLIMITED);
+  }
 
-    Supplier<Stream<Tuple2<Origin, Fact>>> factsSupplier = () -> facts.stream(scope);
-    Stream<Either<Error, Tuple2<Origin, Fact>>> stream = this.apply(factsSupplier, origin, symbolTable);
+  public boolean findMatch(
+      final FactSet facts,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error {
+    final CompiledRule compiled = compiled();
+    final Term[] frame = compiled.newFrame();
+    final CompiledRule.Scratch scratch = new CompiledRule.Scratch(symbolTable);
+    final long start = budget.stats() == null ? 0 : System.nanoTime();
 
-    Iterator<Either<Error, Tuple2<Origin, Fact>>> it = stream.iterator();
+    final Trace trace = budget.trace();
 
-    if (!it.hasNext()) {
-      return false;
+    if (this.body.isEmpty()) {
+      try {
+        final boolean result = compiled.checkExpressions(frame, scratch);
+        if (trace != null) {
+          trace.queried(origin, this, result, null, null);
+        }
+        return result;
+      } finally {
+        record(budget, RuleStats.Kind.QUERY, origin, null, scratch, start);
+      }
     }
 
-    Either<Error, Tuple2<Origin, Fact>> next = it.next();
-    if (next.isRight()) {
-      return true;
-    } else {
-      throw next.getLeft();
+    // the expressions are evaluated by the combinator's filter, the sink stops at the first
+    // binding that would generate a fact
+    final JoinPlan plan = searchPlan(facts);
+    final Combinator combinator =
+        combinator(frame, plan, factsSources(facts, scope), budget, false, scratch);
+    if (trace != null) {
+      combinator.traceMatches();
+    }
+    try {
+      final boolean found =
+          !combinator.forEach(
+              o -> {
+                compiled.checkHead(frame);
+                if (trace != null) {
+                  trace.queried(
+                      origin, this, true, frame.clone(), bodyOrder(plan, combinator.matched()));
+                }
+                return false;
+              });
+      if (!found && trace != null) {
+        trace.queried(
+            origin,
+            this,
+            false,
+            combinator.deepestFrame(),
+            bodyOrder(plan, combinator.deepestMatched()));
+      }
+      return found;
+    } finally {
+      record(budget, RuleStats.Kind.QUERY, origin, combinator, scratch, start);
     }
   }
 
   // verifies that the expressions return true for every matching set of facts
   public boolean checkMatchAll(final FactSet facts, TrustedOrigins scope, SymbolTable symbolTable)
       throws Error {
-    MatchedVariables variables = variablesSet();
+    return checkMatchAll(facts, null, scope, symbolTable, RunLimits.Budget.UNLIMITED);
+  }
+
+  /**
+   * Verifies that the expressions return true for every matching set of facts, within a budget
+   *
+   * @param origin the block of the check, used for the statistics
+   */
+  public boolean checkMatchAll(
+      final FactSet facts,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error {
+    final CompiledRule compiled = compiled();
+    final Term[] frame = compiled.newFrame();
+    final CompiledRule.Scratch scratch = new CompiledRule.Scratch(symbolTable);
+    final long start = budget.stats() == null ? 0 : System.nanoTime();
+
+    final Trace trace = budget.trace();
 
     if (this.body.isEmpty()) {
-      return variables.checkExpressions(this.expressions, symbolTable).isDefined();
+      try {
+        final boolean result = compiled.checkExpressions(frame, scratch);
+        if (trace != null) {
+          trace.queried(origin, this, result, null, null);
+        }
+        return result;
+      } finally {
+        record(budget, RuleStats.Kind.QUERY, origin, null, scratch, start);
+      }
     }
 
-    Supplier<Stream<Tuple2<Origin, Fact>>> factsSupplier = () -> facts.stream(scope);
-    Combinator combinator = new Combinator(variables, this.body, factsSupplier, symbolTable);
-    boolean found = false;
-
-    for (Combinator it = combinator; it.hasNext(); ) {
-      Tuple2<Origin, Map<Long, Term>> t = it.next();
-      Map<Long, Term> generatedVariables = t._2;
-      found = true;
-
-      TemporarySymbolTable temporarySymbols = new TemporarySymbolTable(symbolTable);
-      for (Expression e : this.expressions) {
-
-        Term term = e.evaluate(generatedVariables, temporarySymbols);
-        if (term instanceof Term.Bool) {
-          Term.Bool b = (Term.Bool) term;
-          if (!b.value()) {
-            return false;
-          }
-          // continue evaluating if true
+    // stops at the first binding for which an expression is false. The expressions are not
+    // filters here, since a false one must only fail the check if the combination is complete
+    final boolean[] found = {false};
+    final JoinPlan plan = searchPlan(facts);
+    final Combinator combinator =
+        combinator(frame, plan, factsSources(facts, scope), budget, false, null);
+    if (trace != null) {
+      combinator.traceMatches();
+    }
+    try {
+      final boolean allTrue =
+          combinator.forEach(
+              o -> {
+                found[0] = true;
+                final boolean result = compiled.checkExpressions(frame, scratch);
+                if (!result && trace != null) {
+                  trace.queried(
+                      origin, this, false, frame.clone(), bodyOrder(plan, combinator.matched()));
+                }
+                return result;
+              });
+      if (trace != null && allTrue) {
+        if (found[0]) {
+          trace.queried(origin, this, true, null, null);
         } else {
-          throw new Error.InvalidType();
+          trace.queried(
+              origin,
+              this,
+              false,
+              combinator.deepestFrame(),
+              bodyOrder(plan, combinator.deepestMatched()));
         }
       }
+      return allTrue && found[0];
+    } finally {
+      record(budget, RuleStats.Kind.QUERY, origin, combinator, scratch, start);
     }
-    return found;
   }
 
   public Rule(
@@ -1,34 +1,62 @@
 package org.biscuitsec.biscuit.datalog;
 
 import io.vavr.Tuple2;
+import io.vavr.Tuple3;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
+/**
+ * The rules of a world, grouped by scope
+ *
+ * <p>clones share the rules and their strata until one of them is modified, which then copies
+ * them
+ */
 public final class RuleSet {
-  private final HashMap<TrustedOrigins, List<Tuple2<Long, Rule>>> rules;
+  private HashMap<TrustedOrigins, List<Tuple2<Long, Rule>>> rules;
+  // true if the rules may be shared with a clone, and must be copied before being modified
+  private boolean shared = false;
+  // computed on demand, reset when rules are added or removed
+  private List<List<Stratum>> layers;
 
   public RuleSet() {
     rules = new HashMap<>();
   }
 
   public void add(Long origin, TrustedOrigins scope, Rule rule) {
-    if (!rules.containsKey(scope)) {
-      rules.put(scope, List.of(new Tuple2<>(origin, rule)));
-    } else {
-      rules.get(scope).add(new Tuple2<>(origin, rule));
+    unshare();
+    rules.computeIfAbsent(scope, k -> new ArrayList<>()).add(new Tuple2<>(origin, rule));
+    layers = null;
+  }
+
+  private void unshare() {
+    if (this.shared) {
+      HashMap<TrustedOrigins, List<Tuple2<Long, Rule>>> copy = new HashMap<>();
+      for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry : this.rules.entrySet()) {
+        copy.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+      }
+      this.rules = copy;
+      this.shared = false;
     }
   }
 
-  public RuleSet clone() {
+  /**
+   * Returns a set with the same rules, shared with this one until either of them is modified
+   *
+   * <p>synchronized so that a preloaded set can be cloned from concurrent requests
+   */
+  public synchronized RuleSet clone() {
     RuleSet newRules = new RuleSet();
-
-    for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry : this.rules.entrySet()) {
-      List<Tuple2<Long, Rule>> l = new ArrayList<>(entry.getValue());
-      newRules.rules.put(entry.getKey(), l);
-    }
+    this.shared = true;
+    newRules.rules = this.rules;
+    newRules.shared = true;
+    newRules.layers = this.layers;
 
     return newRules;
   }
@@ -38,10 +66,206 @@ public final class RuleSet {
   }
 
   public void clear() {
-    this.rules.clear();
+    this.rules = new HashMap<>();
+    this.shared = false;
+    this.layers = null;
   }
 
+  /**
+   * Returns the rules grouped by scope
+   *
+   * <p>the returned map must not be modified directly, use add or clear instead so that the
+   * strata are computed again
+   */
   public HashMap<TrustedOrigins, List<Tuple2<Long, Rule>>> getRules() {
     return this.rules;
   }
+
+  /**
+   * A set of rules that must be evaluated together: the strongly connected component of the rule
+   * dependency graph
+   */
+  public static final class Stratum {
+    private final List<Tuple3<Long, TrustedOrigins, Rule>> rules;
+    private final boolean recursive;
+
+    Stratum(List<Tuple3<Long, TrustedOrigins, Rule>> rules, boolean recursive) {
+      this.rules = rules;
+      this.recursive = recursive;
+    }
+
+    /** The rules, with their origin and scope */
+    public List<Tuple3<Long, TrustedOrigins, Rule>> rules() {
+      return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Returns true if a rule of the stratum can use the facts generated by the stratum, in which
+     * case it has to be evaluated until it reaches a fixpoint, otherwise a single evaluation is
+     * enough
+     */
+    public boolean isRecursive() {
+      return recursive;
+    }
+
+    @Override
+    public String toString() {
+      return "Stratum{rules=" + rules + ", recursive=" + recursive + '}';
+    }
+  }
+
+  /**
+   * Groups the rules in strata, ordered by their dependencies
+   *
+   * <p>a rule depends on another one if one of its body predicates has the same name and arity as
+   * the other rule's head. The strata are the strongly connected components of that graph, and
+   * each layer contains the strata that only depend on the strata of previous layers, so a layer
+   * can be evaluated once all the previous ones have reached their fixpoint.
+   */
+  public List<List<Stratum>> layers() {
+    if (this.layers == null) {
+      this.layers = computeLayers();
+    }
+    return this.layers;
+  }
+
+  private List<List<Stratum>> computeLayers() {
+    final List<Tuple3<Long, TrustedOrigins, Rule>> nodes = new ArrayList<>();
+    for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry : this.rules.entrySet()) {
+      for (Tuple2<Long, Rule> t : entry.getValue()) {
+        nodes.add(new Tuple3<>(t._1, entry.getKey(), t._2));
+      }
+    }
+
+    // the rules whose head can produce facts for each predicate
+    final HashMap<PredicateKey, List<Integer>> producers = new HashMap<>();
+    for (int i = 0; i < nodes.size(); i++) {
+      producers
+          .computeIfAbsent(new PredicateKey(nodes.get(i)._3.head()), k -> new ArrayList<>())
+          .add(i);
+    }
+    // for each rule, the rules it depends on
+    final List<List<Integer>> dependencies = new ArrayList<>(nodes.size());
+    for (Tuple3<Long, TrustedOrigins, Rule> node : nodes) {
+      final List<Integer> deps = new ArrayList<>();
+      for (Predicate predicate : node._3.body()) {
+        deps.addAll(producers.getOrDefault(new PredicateKey(predicate), Collections.emptyList()));
+      }
+      dependencies.add(deps);
+    }
+
+    final Tarjan tarjan = new Tarjan(dependencies);
+    // Tarjan's algorithm finds the components of a dependency before the component depending on
+    // it, so they are already in evaluation order
+    final int[] layerOf = new int[tarjan.components.size()];
+    final List<List<Stratum>> layers = new ArrayList<>();
+    for (int c = 0; c < tarjan.components.size(); c++) {
+      final List<Integer> component = tarjan.components.get(c);
+      boolean recursive = false;
+      int layer = 0;
+      for (int node : component) {
+        for (int dep : dependencies.get(node)) {
+          int depComponent = tarjan.componentOf[dep];
+          if (depComponent == c) {
+            recursive = true;
+          } else {
+            layer = Math.max(layer, layerOf[depComponent] + 1);
+          }
+        }
+      }
+      layerOf[c] = layer;
+
+      final List<Tuple3<Long, TrustedOrigins, Rule>> stratumRules = new ArrayList<>();
+      for (int node : component) {
+        stratumRules.add(nodes.get(node));
+      }
+      while (layers.size() <= layer) {
+        layers.add(new ArrayList<>());
+      }
+      layers.get(layer).add(new Stratum(stratumRules, recursive));
+    }
+
+    return layers;
+  }
+
+  // Tarjan's strongly connected components algorithm, without recursion to support long chains
+  // of rules
+  private static final class Tarjan {
+    private final List<List<Integer>> edges;
+    private final int[] index;
+    private final int[] lowLink;
+    private final boolean[] onStack;
+    private final Deque<Integer> stack = new ArrayDeque<>();
+    private int nextIndex = 0;
+
+    final int[] componentOf;
+    final List<List<Integer>> components = new ArrayList<>();
+
+    Tarjan(List<List<Integer>> edges) {
+      this.edges = edges;
+      this.index = new int[edges.size()];
+      this.lowLink = new int[edges.size()];
+      this.onStack = new boolean[edges.size()];
+      this.componentOf = new int[edges.size()];
+      Arrays.fill(this.index, -1);
+
+      for (int node = 0; node < edges.size(); node++) {
+        if (index[node] == -1) {
+          visit(node);
+        }
+      }
+    }
+
+    private void visit(int root) {
+      // each frame is a node and the position of the next edge to follow
+      final Deque<int[]> frames = new ArrayDeque<>();
+      frames.push(new int[] {root, 0});
+      open(root);
+
+      while (!frames.isEmpty()) {
+        final int[] frame = frames.peek();
+        final int node = frame[0];
+        final List<Integer> nodeEdges = edges.get(node);
+
+        if (frame[1] < nodeEdges.size()) {
+          final int next = nodeEdges.get(frame[1]);
+          frame[1] += 1;
+          if (index[next] == -1) {
+            open(next);
+            frames.push(new int[] {next, 0});
+          } else if (onStack[next]) {
+            lowLink[node] = Math.min(lowLink[node], index[next]);
+          }
+          continue;
+        }
+
+        frames.pop();
+        if (!frames.isEmpty()) {
+          final int parent = frames.peek()[0];
+          lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+        }
+
+        if (lowLink[node] == index[node]) {
+          final List<Integer> component = new ArrayList<>();
+          int member;
+          do {
+            member = stack.pop();
+            onStack[member] = false;
+            componentOf[member] = components.size();
+            component.add(member);
+          } while (member != node);
+          Collections.reverse(component);
+          components.add(component);
+        }
+      }
+    }
+
+    private void open(int node) {
+      index[node] = nextIndex;
+      lowLink[node] = nextIndex;
+      nextIndex += 1;
+      stack.push(node);
+      onStack[node] = true;
+    }
+  }
 }
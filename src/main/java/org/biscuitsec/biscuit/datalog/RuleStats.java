@@ -0,0 +1,184 @@
+package org.biscuitsec.biscuit.datalog;
+
+import io.vavr.Tuple3;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution statistics of the rules and queries evaluated with a budget, see {@link
+ * RunLimits#start(RuleStats)}
+ *
+ * <p>there is one entry per rule or query and origin, that accumulates over all the runs and
+ * queries using these statistics. Each application of a rule, including the ones of semi-naive
+ * evaluation, and each evaluation of a check or policy query counts as an invocation. This is
+ * thread safe, so it can be used by rules evaluated in parallel and shared by the authorizers of
+ * different requests. Without statistics, nothing is measured.
+ *
+ * <p>since the rules and queries come from the tokens, the number of entries is bounded: once it is
+ * reached, the invocations of new rules and queries are only counted by {@link #dropped()}, so
+ * that statistics shared by many requests cannot grow without bound.
+ */
+public final class RuleStats {
+  public enum Kind {
+    /** A rule applied by World.run */
+    RULE,
+    /** A check or policy query */
+    QUERY
+  }
+
+  /** The default maximum number of entries */
+  public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+  private final ConcurrentHashMap<Tuple3<Kind, Long, Rule>, Entry> entries =
+      new ConcurrentHashMap<>();
+  private final int maxEntries;
+  private final LongAdder dropped = new LongAdder();
+
+  public RuleStats() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param maxEntries the maximum number of rules and queries recorded, it can be exceeded by a
+   *     few entries when they are added concurrently
+   */
+  public RuleStats(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /** The statistics of a rule or query from one origin */
+  public static final class Entry {
+    private final Kind kind;
+    private final Long origin;
+    private final Rule rule;
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder candidates = new LongAdder();
+    private final LongAdder bindings = new LongAdder();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder facts = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    private Entry(Kind kind, Long origin, Rule rule) {
+      this.kind = kind;
+      this.origin = origin;
+      this.rule = rule;
+    }
+
+    public Kind kind() {
+      return kind;
+    }
+
+    /** The block the rule or query comes from, Long.MAX_VALUE for the authorizer */
+    public Long origin() {
+      return origin;
+    }
+
+    public Rule rule() {
+      return rule;
+    }
+
+    public long invocations() {
+      return invocations.sum();
+    }
+
+    /** The candidate facts read by the joins */
+    public long candidates() {
+      return candidates.sum();
+    }
+
+    /** The combinations of facts matching all the body predicates */
+    public long bindings() {
+      return bindings.sum();
+    }
+
+    public long expressionEvaluations() {
+      return evaluations.sum();
+    }
+
+    /** The facts generated by a rule, before deduplication, or the matches found by a query */
+    public long facts() {
+      return facts.sum();
+    }
+
+    public long nanos() {
+      return nanos.sum();
+    }
+
+    @Override
+    public String toString() {
+      return "Entry{kind="
+          + kind
+          + ", origin="
+          + origin
+          + ", rule="
+          + rule
+          + ", invocations="
+          + invocations()
+          + ", candidates="
+          + candidates()
+          + ", bindings="
+          + bindings()
+          + ", expressionEvaluations="
+          + expressionEvaluations()
+          + ", facts="
+          + facts()
+          + ", nanos="
+          + nanos()
+          + '}';
+    }
+  }
+
+  void record(
+      Kind kind,
+      Long origin,
+      Rule rule,
+      long candidates,
+      long bindings,
+      long evaluations,
+      long facts,
+      long nanos) {
+    final Tuple3<Kind, Long, Rule> key = new Tuple3<>(kind, origin, rule);
+    Entry entry = this.entries.get(key);
+    if (entry == null) {
+      if (this.entries.size() >= this.maxEntries) {
+        this.dropped.increment();
+        return;
+      }
+      entry = this.entries.computeIfAbsent(key, k -> new Entry(kind, origin, rule));
+    }
+    entry.invocations.increment();
+    entry.candidates.add(candidates);
+    entry.bindings.add(bindings);
+    entry.evaluations.add(evaluations);
+    entry.facts.add(facts);
+    entry.nanos.add(nanos);
+  }
+
+  /** Returns a snapshot of the entries */
+  public List<Entry> entries() {
+    return new ArrayList<>(this.entries.values());
+  }
+
+  /** Returns a snapshot of the entries, grouped by origin */
+  public Map<Long, List<Entry>> byOrigin() {
+    final Map<Long, List<Entry>> result = new HashMap<>();
+    for (Entry entry : this.entries.values()) {
+      result.computeIfAbsent(entry.origin, k -> new ArrayList<>()).add(entry);
+    }
+    return result;
+  }
+
+  /** The invocations that were not recorded because the maximum number of entries was reached */
+  public long dropped() {
+    return this.dropped.sum();
+  }
+
+  public void clear() {
+    this.entries.clear();
+    this.dropped.reset();
+  }
+}
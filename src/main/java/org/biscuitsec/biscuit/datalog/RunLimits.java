@@ -1,11 +1,18 @@
 package org.biscuitsec.biscuit.datalog;
 
 import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.biscuitsec.biscuit.error.Error;
 
 public final class RunLimits {
   private int maxFacts = 1000;
   private int maxIterations = 100;
   private Duration maxTime = Duration.ofMillis(5);
+  private Executor executor = null;
+  private long maxJoinCandidates = Long.MAX_VALUE;
+  private CancellationToken cancellation = null;
 
   public RunLimits() {}
 
@@ -15,6 +22,37 @@ public final class RunLimits {
     this.maxTime = maxTime;
   }
 
+  /**
+   * Creates limits where the rules of each iteration are evaluated in parallel
+   *
+   * @param executor runs the rule evaluations of an iteration concurrently, like a ForkJoinPool
+   */
+  public RunLimits(int maxFacts, int maxIterations, Duration maxTime, Executor executor) {
+    this(maxFacts, maxIterations, maxTime);
+    this.executor = executor;
+  }
+
+  /**
+   * Creates limits that also bound the work done by joins, and can be cancelled
+   *
+   * @param executor runs the rule evaluations of an iteration concurrently, or null to evaluate
+   *     them sequentially
+   * @param maxJoinCandidates the number of candidate facts the joins can go through, over the
+   *     whole run or authorization
+   * @param cancellation stops the run when cancelled, or null
+   */
+  public RunLimits(
+      int maxFacts,
+      int maxIterations,
+      Duration maxTime,
+      Executor executor,
+      long maxJoinCandidates,
+      CancellationToken cancellation) {
+    this(maxFacts, maxIterations, maxTime, executor);
+    this.maxJoinCandidates = maxJoinCandidates;
+    this.cancellation = cancellation;
+  }
+
   public int getMaxFacts() {
     return this.maxFacts;
   }
@@ -26,4 +64,128 @@ public final class RunLimits {
   public Duration getMaxTime() {
     return this.maxTime;
   }
+
+  /** The executor used for parallel evaluation, empty if the rules are evaluated sequentially */
+  public Optional<Executor> getExecutor() {
+    return Optional.ofNullable(this.executor);
+  }
+
+  public long getMaxJoinCandidates() {
+    return this.maxJoinCandidates;
+  }
+
+  public Optional<CancellationToken> getCancellation() {
+    return Optional.ofNullable(this.cancellation);
+  }
+
+  /** Starts the clock: returns the budget of a run or an authorization starting now */
+  public Budget start() {
+    return new Budget(this, null, null);
+  }
+
+  /**
+   * Starts the clock, for a run or an authorization that records the execution statistics of
+   * its rules and queries
+   *
+   * @param stats receives the statistics, or null to not record them
+   */
+  public Budget start(RuleStats stats) {
+    return new Budget(this, stats, null);
+  }
+
+  /**
+   * Starts the clock, for a run or an authorization that records statistics and a trace of its
+   * derivations and queries
+   *
+   * @param stats receives the statistics, or null to not record them
+   * @param trace receives the derivations and query results, or null to not record them
+   */
+  public Budget start(RuleStats stats, Trace trace) {
+    return new Budget(this, stats, trace);
+  }
+
+  /**
+   * What is left of the limits during a run
+   *
+   * <p>the deadline uses System.nanoTime, which is monotonic. Joins report the candidate facts
+   * they go through every {@link #CHECK_INTERVAL} candidates, which is when the deadline, the
+   * cancellation token and the candidate budget are checked, so that a single large join can be
+   * interrupted without reading the clock for each fact. A budget can be shared by the rules
+   * evaluated in parallel.
+   */
+  public static final class Budget {
+    /** The number of candidate facts a join goes through between two checks */
+    public static final int CHECK_INTERVAL = 1024;
+
+    static final Budget UNLIMITED =
+        new RunLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Duration.ofSeconds(Long.MAX_VALUE))
+            .start();
+
+    private final RunLimits limits;
+    private final long start;
+    private final long maxNanos;
+    private final AtomicLong remainingCandidates;
+    private final RuleStats stats;
+    private final Trace trace;
+
+    private Budget(RunLimits limits, RuleStats stats, Trace trace) {
+      this.limits = limits;
+      this.stats = stats;
+      this.trace = trace;
+      this.start = System.nanoTime();
+      long maxNanos;
+      try {
+        maxNanos = limits.maxTime.toNanos();
+      } catch (ArithmeticException e) {
+        maxNanos = Long.MAX_VALUE;
+      }
+      this.maxNanos = maxNanos;
+      this.remainingCandidates =
+          limits.maxJoinCandidates == Long.MAX_VALUE
+              ? null
+              : new AtomicLong(limits.maxJoinCandidates);
+    }
+
+    public RunLimits limits() {
+      return this.limits;
+    }
+
+    // null if the statistics are not recorded
+    RuleStats stats() {
+      return this.stats;
+    }
+
+    // null if there is no trace
+    Trace trace() {
+      return this.trace;
+    }
+
+    /**
+     * Checks the cancellation token and the deadline
+     *
+     * @throws Error.Cancelled if the token was cancelled
+     * @throws Error.Timeout if the deadline has passed
+     */
+    public void check() throws Error {
+      if (this.limits.cancellation != null && this.limits.cancellation.isCancelled()) {
+        throw new Error.Cancelled();
+      }
+      if (this.maxNanos != Long.MAX_VALUE && System.nanoTime() - this.start >= this.maxNanos) {
+        throw new Error.Timeout();
+      }
+    }
+
+    /**
+     * Takes candidate facts from the budget, then checks the other limits
+     *
+     * @throws Error.TooManyJoinCandidates if there are not enough candidates left
+     */
+    void consume(long candidates) throws Error {
+      if (this.remainingCandidates != null
+          && this.remainingCandidates.addAndGet(-candidates) < 0) {
+        throw new Error.TooManyJoinCandidates();
+      }
+      check();
+    }
+  }
 }
@@ -29,6 +29,11 @@ public final class TemporarySymbolTable {
     }
   }
 
+  // forgets the temporary symbols, so the table can be reused for another evaluation
+  void clear() {
+    this.symbols.clear();
+  }
+
   public long insert(final String symbol) {
     Option<Long> opt = this.base.get(symbol);
     if (opt.isDefined()) {
@@ -119,6 +119,24 @@ public abstract class Term implements Serializable {
       this.value = value;
     }
 
+    private static final long SMALL_MIN = -128;
+    private static final long SMALL_MAX = 1023;
+    private static final Integer[] SMALL = new Integer[(int) (SMALL_MAX - SMALL_MIN + 1)];
+
+    static {
+      for (int i = 0; i < SMALL.length; i++) {
+        SMALL[i] = new Integer(SMALL_MIN + i);
+      }
+    }
+
+    /** Returns an integer term, shared for values from -128 to 1023 */
+    public static Integer of(final long value) {
+      if (value >= SMALL_MIN && value <= SMALL_MAX) {
+        return SMALL[(int) (value - SMALL_MIN)];
+      }
+      return new Integer(value);
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) {
@@ -152,7 +170,7 @@ public abstract class Term implements Serializable {
         return Left(
             new Error.FormatError.DeserializationError("invalid Term kind, expected integer"));
       } else {
-        return Right(new Integer(term.getInteger()));
+        return Right(Integer.of(term.getInteger()));
       }
     }
 
@@ -163,6 +181,8 @@ public abstract class Term implements Serializable {
 
   public static final class Bytes extends Term implements Serializable {
     private final byte[] value;
+    // computed on first use, 0 until then
+    private transient int hash;
 
     public byte[] value() {
       return this.value;
@@ -193,12 +213,17 @@ public abstract class Term implements Serializable {
 
       Bytes bytes = (Bytes) o;
 
-      return Arrays.equals(value, bytes.value);
+      return hashCode() == bytes.hashCode() && Arrays.equals(value, bytes.value);
     }
 
     @Override
     public int hashCode() {
-      return Arrays.hashCode(value);
+      int h = hash;
+      if (h == 0) {
+        h = Arrays.hashCode(value);
+        hash = h;
+      }
+      return h;
     }
 
     @Override
@@ -362,6 +387,14 @@ public abstract class Term implements Serializable {
       this.value = value;
     }
 
+    public static final Bool TRUE = new Bool(true);
+    public static final Bool FALSE = new Bool(false);
+
+    /** Returns the shared true or false term */
+    public static Bool of(final boolean value) {
+      return value ? TRUE : FALSE;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) {
@@ -395,7 +428,7 @@ public abstract class Term implements Serializable {
         return Left(
             new Error.FormatError.DeserializationError("invalid Term kind, expected boolean"));
       } else {
-        return Right(new Bool(term.getBool()));
+        return Right(Bool.of(term.getBool()));
       }
     }
 
@@ -406,6 +439,8 @@ public abstract class Term implements Serializable {
 
   public static final class Set extends Term implements Serializable {
     private final HashSet<Term> value;
+    // computed on first use, 0 until then: the set must not be modified once the term is created
+    private transient int hash;
 
     public HashSet<Term> value() {
       return this.value;
@@ -436,12 +471,17 @@ public abstract class Term implements Serializable {
 
       Set set = (Set) o;
 
-      return value.equals(set.value);
+      return hashCode() == set.hashCode() && value.equals(set.value);
     }
 
     @Override
     public int hashCode() {
-      return value.hashCode();
+      int h = hash;
+      if (h == 0) {
+        h = value.hashCode();
+        hash = h;
+      }
+      return h;
     }
 
     @Override
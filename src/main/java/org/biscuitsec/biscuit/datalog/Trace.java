@@ -0,0 +1,242 @@
+package org.biscuitsec.biscuit.datalog;
+
+import io.vavr.Tuple2;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A record of how the facts were generated and how the queries were answered during runs and
+ * authorizations, to explain their results
+ *
+ * <p>a trace is attached to a budget, see {@link RunLimits#start(RuleStats, Trace)}. It records
+ * the first derivation of each generated fact (the rule and the facts matching its body) and,
+ * for each check or policy query, the binding that matched, or the deepest partial binding the
+ * search reached if there was none. For a "check all" query, it is the binding that failed.
+ *
+ * <p>events are kept in a ring buffer of fixed capacity, the oldest ones being overwritten once it
+ * is full. They only hold references to the rules, facts and terms involved: nothing is formatted
+ * until {@link #format(SymbolTable)} is called, so that tracing can stay enabled on a sample of
+ * the authorizations. This is synchronized, so rules evaluated in parallel can share a trace.
+ */
+public final class Trace {
+  private final Object[] events;
+  // the number of events recorded since the creation or the last clear
+  private long recorded = 0;
+  // the derivations that are still in the buffer
+  private final HashMap<Tuple2<Origin, Fact>, Derivation> derivations = new HashMap<>();
+
+  /** @param capacity the number of events kept */
+  public Trace(int capacity) {
+    this.events = new Object[capacity];
+  }
+
+  /** How a fact was generated: the rule, and the facts matching its body, in the body's order */
+  public static final class Derivation {
+    private final Origin origin;
+    private final Fact fact;
+    private final Long ruleOrigin;
+    private final Rule rule;
+    private final List<Tuple2<Origin, Fact>> premises;
+
+    Derivation(
+        Origin origin, Fact fact, Long ruleOrigin, Rule rule, List<Tuple2<Origin, Fact>> premises) {
+      this.origin = origin;
+      this.fact = fact;
+      this.ruleOrigin = ruleOrigin;
+      this.rule = rule;
+      this.premises = premises;
+    }
+
+    public Origin origin() {
+      return origin;
+    }
+
+    public Fact fact() {
+      return fact;
+    }
+
+    public Long ruleOrigin() {
+      return ruleOrigin;
+    }
+
+    public Rule rule() {
+      return rule;
+    }
+
+    public List<Tuple2<Origin, Fact>> premises() {
+      return Collections.unmodifiableList(premises);
+    }
+  }
+
+  /** The evaluation of a check or policy query */
+  public static final class QueryResult {
+    private final Long origin;
+    private final Rule query;
+    private final boolean matched;
+    private final Term[] frame;
+    private final List<Tuple2<Origin, Fact>> facts;
+
+    QueryResult(
+        Long origin, Rule query, boolean matched, Term[] frame, List<Tuple2<Origin, Fact>> facts) {
+      this.origin = origin;
+      this.query = query;
+      this.matched = matched;
+      this.frame = frame;
+      this.facts = facts;
+    }
+
+    /** The block of the check or policy, Long.MAX_VALUE for the authorizer */
+    public Long origin() {
+      return origin;
+    }
+
+    public Rule query() {
+      return query;
+    }
+
+    /** True if the query succeeded */
+    public boolean matched() {
+      return matched;
+    }
+
+    /**
+     * The values of the variables in the recorded binding, by variable symbol
+     *
+     * <p>empty if no fact matched the first body predicate, or if a "check all" query succeeded
+     */
+    public Map<Long, Term> bindings() {
+      return frame == null ? Collections.emptyMap() : query.bindings(frame);
+    }
+
+    /**
+     * The facts of the recorded binding, in the body's order, null for the predicates that were
+     * not bound
+     */
+    public List<Tuple2<Origin, Fact>> facts() {
+      return facts == null ? Collections.emptyList() : Collections.unmodifiableList(facts);
+    }
+  }
+
+  synchronized void derived(
+      Origin origin, Fact fact, Long ruleOrigin, Rule rule, List<Tuple2<Origin, Fact>> premises) {
+    final Tuple2<Origin, Fact> key = new Tuple2<>(origin, fact);
+    if (!this.derivations.containsKey(key)) {
+      final Derivation derivation = new Derivation(origin, fact, ruleOrigin, rule, premises);
+      this.derivations.put(key, derivation);
+      add(derivation);
+    }
+  }
+
+  synchronized void queried(
+      Long origin, Rule query, boolean matched, Term[] frame, List<Tuple2<Origin, Fact>> facts) {
+    add(new QueryResult(origin, query, matched, frame, facts));
+  }
+
+  private void add(Object event) {
+    final int position = (int) (this.recorded % this.events.length);
+    final Object evicted = this.events[position];
+    if (evicted instanceof Derivation) {
+      final Derivation derivation = (Derivation) evicted;
+      this.derivations.remove(new Tuple2<>(derivation.origin, derivation.fact));
+    }
+    this.events[position] = event;
+    this.recorded += 1;
+  }
+
+  /** The number of events recorded, including the ones that were overwritten */
+  public synchronized long recorded() {
+    return this.recorded;
+  }
+
+  /** The derivations still in the buffer, from the oldest */
+  public synchronized List<Derivation> derivations() {
+    return events(Derivation.class);
+  }
+
+  /** The query results still in the buffer, from the oldest */
+  public synchronized List<QueryResult> queryResults() {
+    return events(QueryResult.class);
+  }
+
+  /** Returns the first derivation of the fact, or null if it is not in the buffer */
+  public synchronized Derivation derivation(Origin origin, Fact fact) {
+    return this.derivations.get(new Tuple2<>(origin, fact));
+  }
+
+  public synchronized void clear() {
+    Arrays.fill(this.events, null);
+    this.derivations.clear();
+    this.recorded = 0;
+  }
+
+  private <T> List<T> events(Class<T> type) {
+    final List<T> result = new ArrayList<>();
+    final long start = Math.max(0, this.recorded - this.events.length);
+    for (long i = start; i < this.recorded; i++) {
+      final Object event = this.events[(int) (i % this.events.length)];
+      if (type.isInstance(event)) {
+        result.add(type.cast(event));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Formats the query results, each followed by the derivation tree of the facts of its binding,
+   * as far as the derivations are still in the buffer
+   */
+  public synchronized String format(SymbolTable symbolTable) {
+    final StringBuilder s = new StringBuilder("Trace {");
+    for (QueryResult result : events(QueryResult.class)) {
+      s.append("\n\t")
+          .append(result.origin == Long.MAX_VALUE ? "authorizer" : "block " + result.origin)
+          .append(result.matched ? " matched: " : " failed: ")
+          .append(symbolTable.formatRule(result.query));
+      final Map<Long, Term> bindings = new LinkedHashMap<>(result.bindings());
+      if (!bindings.isEmpty()) {
+        s.append("\n\t\twith");
+        for (Map.Entry<Long, Term> binding : bindings.entrySet()) {
+          s.append(' ')
+              .append(symbolTable.formatTerm(new Term.Variable(binding.getKey())))
+              .append(" = ")
+              .append(symbolTable.formatTerm(binding.getValue()));
+        }
+      }
+      for (Tuple2<Origin, Fact> fact : result.facts()) {
+        if (fact != null) {
+          formatProof(s, symbolTable, fact, 2, new HashSet<>());
+        }
+      }
+    }
+    s.append("\n}");
+    return s.toString();
+  }
+
+  private void formatProof(
+      StringBuilder s,
+      SymbolTable symbolTable,
+      Tuple2<Origin, Fact> fact,
+      int indent,
+      HashSet<Tuple2<Origin, Fact>> visited) {
+    s.append('\n');
+    for (int i = 0; i < indent; i++) {
+      s.append('\t');
+    }
+    s.append(symbolTable.formatFact(fact._2)).append(' ').append(fact._1);
+    final Derivation derivation = this.derivations.get(fact);
+    if (derivation == null || !visited.add(fact)) {
+      return;
+    }
+    s.append(" <- ").append(symbolTable.formatRule(derivation.rule));
+    for (Tuple2<Origin, Fact> premise : derivation.premises) {
+      formatProof(s, symbolTable, premise, indent + 1, visited);
+    }
+    visited.remove(fact);
+  }
+}
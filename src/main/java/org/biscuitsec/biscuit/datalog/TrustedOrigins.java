@@ -3,21 +3,22 @@ package org.biscuitsec.biscuit.datalog;
 import java.util.HashMap;
 import java.util.List;
 
+/**
+ * The blocks whose facts a rule, check or policy can use
+ *
+ * <p>immutable, see {@link Origin}
+ */
 public final class TrustedOrigins {
   private final Origin origin;
 
   public TrustedOrigins(int... origins) {
     Origin origin = new Origin();
     for (int i : origins) {
-      origin.add(i);
+      origin = origin.with(i);
     }
     this.origin = origin;
   }
 
-  private TrustedOrigins() {
-    origin = new Origin();
-  }
-
   private TrustedOrigins(Origin inner) {
     if (inner == null) {
       throw new RuntimeException();
@@ -26,14 +27,11 @@ public final class TrustedOrigins {
   }
 
   public TrustedOrigins clone() {
-    return new TrustedOrigins(this.origin.clone());
+    return this;
   }
 
   public static TrustedOrigins defaultOrigins() {
-    TrustedOrigins origins = new TrustedOrigins();
-    origins.origin.add(0);
-    origins.origin.add(Long.MAX_VALUE);
-    return origins;
+    return new TrustedOrigins(Origin.of(0).with(Long.MAX_VALUE));
   }
 
   public static TrustedOrigins fromScopes(
@@ -42,45 +40,59 @@ public final class TrustedOrigins {
       long currentBlock,
       HashMap<Long, List<Long>> publicKeyToBlockId) {
     if (ruleScopes.isEmpty()) {
-      TrustedOrigins origins = defaultOrigins.clone();
-      origins.origin.add(currentBlock);
-      origins.origin.add(Long.MAX_VALUE);
-      return origins;
+      return new TrustedOrigins(defaultOrigins.origin.with(currentBlock).with(Long.MAX_VALUE));
     }
 
-    TrustedOrigins origins = new TrustedOrigins();
-    origins.origin.add(currentBlock);
-    origins.origin.add(Long.MAX_VALUE);
+    Origin origin = Origin.of(currentBlock).with(Long.MAX_VALUE);
 
     for (Scope scope : ruleScopes) {
       switch (scope.kind()) {
         case Authority:
-          origins.origin.add(0);
+          origin = origin.with(0);
           break;
         case Previous:
           if (currentBlock != Long.MAX_VALUE) {
             for (long i = 0; i < currentBlock + 1; i++) {
-              origins.origin.add(i);
+              origin = origin.with(i);
             }
           }
           break;
         case PublicKey:
           List<Long> blockIds = publicKeyToBlockId.get(scope.getPublicKey());
           if (blockIds != null) {
-            origins.origin.addAll(blockIds);
+            origin = origin.withAll(blockIds);
           }
           break;
         default:
       }
     }
 
-    return origins;
+    return new TrustedOrigins(origin);
   }
 
   public boolean contains(Origin factOrigin) {
     return this.origin.containsAll(factOrigin);
   }
 
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    TrustedOrigins that = (TrustedOrigins) o;
+
+    return origin.equals(that.origin);
+  }
+
+  @Override
+  public int hashCode() {
+    return origin.hashCode();
+  }
+
   @Override
   public String toString() {
     return "TrustedOrigins{inner=" + origin + '}';
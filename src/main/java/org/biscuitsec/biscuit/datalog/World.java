@@ -1,87 +1,379 @@
 package org.biscuitsec.biscuit.datalog;
 
 import io.vavr.Tuple2;
-import io.vavr.control.Either;
+import io.vavr.Tuple3;
 import java.io.Serializable;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Supplier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
 import java.util.stream.Stream;
 import org.biscuitsec.biscuit.error.Error;
 
-public final class World implements Serializable {
+/**
+ * The reference {@link Engine}: semi-naive evaluation of the rules over indexed facts
+ *
+ * <p>see {@link #run(RunLimits.Budget, SymbolTable)}
+ */
+public final class World implements Serializable, Engine {
   private final FactSet facts;
   private final RuleSet rules;
+  // true if the last run reached the fixpoint, then only the facts and rules added since then
+  // need to be evaluated by the next run
+  private boolean saturated = false;
+  private final FactSet pendingFacts;
+  private final HashSet<Tuple3<Long, TrustedOrigins, Rule>> pendingRules;
+  // rules whose generated facts were added before the run, see addMemoized
+  private final HashSet<Tuple3<Long, TrustedOrigins, Rule>> memoizedRules;
 
   public void addFact(final Origin origin, final Fact fact) {
+    if (this.saturated && !this.facts.contains(origin, fact)) {
+      this.pendingFacts.add(origin, fact);
+    }
     this.facts.add(origin, fact);
   }
 
   public void addRule(Long origin, TrustedOrigins scope, Rule rule) {
+    if (this.saturated) {
+      this.pendingRules.add(new Tuple3<>(origin, scope, rule));
+    }
     this.rules.add(origin, scope, rule);
   }
 
   public void clearRules() {
     this.rules.clear();
+    this.pendingRules.clear();
+    this.memoizedRules.clear();
+  }
+
+  /** Returns true if the last run reached the fixpoint and nothing was added since then */
+  public boolean isSaturated() {
+    return this.saturated && this.pendingFacts.size() == 0 && this.pendingRules.isEmpty();
+  }
+
+  /**
+   * Adds facts generated by some of the rules outside of a run, like facts memoized from a
+   * previous run, so that the next run does not apply these rules to the whole world again
+   *
+   * <p>the facts must contain the fixpoint of the rules, and the facts matching their bodies must
+   * not depend on the other rules, see {@link #closedRules}. The rules are still applied to the
+   * facts generated during the next run, by semi-naive evaluation
+   */
+  public void addMemoized(FactSet facts, Collection<Tuple3<Long, TrustedOrigins, Rule>> rules) {
+    for (Map.Entry<Origin, HashSet<Fact>> entry : facts.facts().entrySet()) {
+      for (Fact fact : entry.getValue()) {
+        addFact(entry.getKey(), fact);
+      }
+    }
+    if (!this.saturated) {
+      this.memoizedRules.addAll(rules);
+    }
+  }
+
+  /**
+   * Returns the rules whose body can only be matched by facts from some origins, or by facts
+   * generated by these rules
+   *
+   * <p>a rule is selected if its origin is accepted, if no fact from an origin that is not
+   * accepted has the same name and arity as one of its body predicates, and if all the rules
+   * that can generate facts for its body are selected too. The facts these rules generate only
+   * depend on the facts from the accepted origins
+   *
+   * @param ruleOrigins the origins of the rules that can be selected
+   * @param factOrigins the origins of the facts the rules can use
+   */
+  public HashSet<Tuple3<Long, TrustedOrigins, Rule>> closedRules(
+      java.util.function.Predicate<Long> ruleOrigins,
+      java.util.function.Predicate<Origin> factOrigins) {
+    final HashSet<PredicateKey> foreign = this.facts.predicates(factOrigins.negate());
+
+    final HashMap<PredicateKey, List<Tuple3<Long, TrustedOrigins, Rule>>> producers =
+        new HashMap<>();
+    final HashSet<Tuple3<Long, TrustedOrigins, Rule>> selected = new HashSet<>();
+    for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry :
+        this.rules.getRules().entrySet()) {
+      for (Tuple2<Long, Rule> t : entry.getValue()) {
+        final Tuple3<Long, TrustedOrigins, Rule> rule = new Tuple3<>(t._1, entry.getKey(), t._2);
+        producers
+            .computeIfAbsent(new PredicateKey(t._2.head()), k -> new ArrayList<>())
+            .add(rule);
+        if (ruleOrigins.test(t._1)) {
+          selected.add(rule);
+        }
+      }
+    }
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Iterator<Tuple3<Long, TrustedOrigins, Rule>> it = selected.iterator(); it.hasNext(); ) {
+        final Tuple3<Long, TrustedOrigins, Rule> rule = it.next();
+        for (Predicate predicate : rule._3.body()) {
+          final PredicateKey key = new PredicateKey(predicate);
+          if (foreign.contains(key)
+              || !selected.containsAll(producers.getOrDefault(key, Collections.emptyList()))) {
+            it.remove();
+            changed = true;
+            break;
+          }
+        }
+      }
+    }
+    return selected;
   }
 
   public void run(final SymbolTable symbolTable) throws Error {
     this.run(new RunLimits(), symbolTable);
   }
 
+  /**
+   * Runs the rules until no new facts can be generated
+   *
+   * <p>the rules are evaluated by layers of strata (see {@link RuleSet#layers()}): a layer only
+   * starts once the rules it depends on have reached their fixpoint. In a layer, the first
+   * iteration applies every rule to the whole world. Non recursive strata are done after that, and
+   * the recursive ones use semi-naive evaluation: each following iteration only looks for matches
+   * that use at least one of the facts generated by the previous iteration, until there are none.
+   * The iteration limit counts the iterations of all the layers.
+   *
+   * <p>the join order of each rule is planned again at every iteration, from the current number
+   * of facts and the size of the delta
+   *
+   * <p>if the limits have an executor, the rules of an iteration are evaluated concurrently on it,
+   * and the facts they generate are merged once they are all done
+   *
+   * <p>once a run has reached the fixpoint, the world is saturated: the next run only applies the
+   * rules added since then to the whole world, and the other rules to the matches using the facts
+   * added since then, as if these facts were the delta of a previous iteration
+   */
   public void run(RunLimits limits, final SymbolTable symbolTable) throws Error {
+    this.run(limits.start(), symbolTable);
+  }
+
+  /**
+   * Runs the rules until no new facts can be generated, within a budget started by the caller
+   *
+   * <p>this lets an authorization share a single deadline and candidate budget between the run
+   * and the checks. The budget is checked inside the joins, see {@link RunLimits.Budget}
+   */
+  public void run(RunLimits.Budget budget, final SymbolTable symbolTable) throws Error {
+    if (isSaturated()) {
+      return;
+    }
+
+    final RunLimits limits = budget.limits();
+    // the facts that are new since the last fixpoint, null if there was none
+    final FactSet changed = this.saturated ? this.pendingFacts : null;
+    this.saturated = false;
+
     int iterations = 0;
-    Instant limit = Instant.now().plus(limits.getMaxTime());
-
-    while (true) {
-      final FactSet newFacts = new FactSet();
-
-      for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry :
-          this.rules.getRules().entrySet()) {
-        for (Tuple2<Long, Rule> t : entry.getValue()) {
-          Supplier<Stream<Tuple2<Origin, Fact>>> factsSupplier =
-              () -> this.facts.stream(entry.getKey());
-
-          Stream<Either<Error, Tuple2<Origin, Fact>>> stream =
-              t._2.apply(factsSupplier, t._1, symbolTable);
-          for (Iterator<Either<Error, Tuple2<Origin, Fact>>> it = stream.iterator();
-              it.hasNext(); ) {
-            Either<Error, Tuple2<Origin, Fact>> res = it.next();
-            if (Instant.now().compareTo(limit) >= 0) {
-              throw new Error.Timeout();
-            }
+    for (List<RuleSet.Stratum> layer : this.rules.layers()) {
+      boolean recursive = false;
+      for (RuleSet.Stratum stratum : layer) {
+        recursive |= stratum.isRecursive();
+      }
 
-            if (res.isRight()) {
-              Tuple2<Origin, Fact> t2 = res.get();
-              newFacts.add(t2._1, t2._2);
-            } else {
-              throw res.getLeft();
+      boolean first = true;
+      FactSet delta = changed;
+      while (true) {
+        final List<RuleTask> tasks = new ArrayList<>();
+        for (RuleSet.Stratum stratum : layer) {
+          if (!first && !stratum.isRecursive()) {
+            continue;
+          }
+          for (Tuple3<Long, TrustedOrigins, Rule> t : stratum.rules()) {
+            if (first && this.memoizedRules.contains(t)) {
+              continue;
+            }
+            final FactSet currentDelta =
+                first && (changed == null || this.pendingRules.contains(t)) ? null : delta;
+            if (currentDelta != null && currentDelta.size() == 0) {
+              continue;
             }
+            tasks.add(
+                out -> {
+                  for (Tuple2<JoinPlan, List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>>>
+                      sources : factsSources(t._3, t._2, currentDelta)) {
+                    t._3.apply(
+                        sources._1,
+                        sources._2,
+                        t._1,
+                        symbolTable,
+                        budget,
+                        (origin, fact) -> {
+                          out.add(origin, fact);
+                          return true;
+                        });
+                  }
+                });
           }
         }
-      }
 
-      final int len = this.facts.size();
-      this.facts.merge(newFacts);
+        final FactSet newFacts = new FactSet();
+        if (limits.getExecutor().isPresent()) {
+          runParallel(tasks, limits.getExecutor().get(), newFacts);
+        } else {
+          for (RuleTask task : tasks) {
+            task.run(newFacts);
+          }
+        }
+
+        budget.check();
+        delta = this.facts.mergeDelta(newFacts);
+        first = false;
+        if (changed != null) {
+          changed.merge(delta);
+        }
+
+        if (delta.size() == 0) {
+          break;
+        }
+
+        if (this.facts.size() >= limits.getMaxFacts()) {
+          throw new Error.TooManyFacts();
+        }
 
-      if (this.facts.size() == len) {
-        return;
+        iterations += 1;
+        if (iterations >= limits.getMaxIterations()) {
+          throw new Error.TooManyIterations();
+        }
+
+        if (!recursive) {
+          break;
+        }
       }
+    }
+
+    this.saturated = true;
+    this.pendingFacts.clear();
+    this.pendingRules.clear();
+    this.memoizedRules.clear();
+  }
+
+  // the application of one rule in an iteration, writing the generated facts to out
+  private interface RuleTask {
+    void run(FactSet out) throws Error;
+  }
 
-      if (this.facts.size() >= limits.getMaxFacts()) {
-        throw new Error.TooManyFacts();
+  /**
+   * Runs the tasks on the executor, each one writing to its own set of facts, then merges them in
+   * the tasks' order
+   *
+   * <p>the facts are only read during an iteration, so the tasks can share them. If tasks fail,
+   * the error of the first one in the list is thrown, as it would have been in a sequential run
+   */
+  private static void runParallel(List<RuleTask> tasks, Executor executor, FactSet newFacts)
+      throws Error {
+    final List<FutureTask<FactSet>> futures = new ArrayList<>(tasks.size());
+    for (RuleTask task : tasks) {
+      FutureTask<FactSet> future =
+          new FutureTask<>(
+              () -> {
+                FactSet out = new FactSet();
+                task.run(out);
+                return out;
+              });
+      futures.add(future);
+      executor.execute(future);
+    }
+
+    try {
+      for (FutureTask<FactSet> future : futures) {
+        newFacts.merge(future.get());
+      }
+    } catch (ExecutionException e) {
+      for (FutureTask<FactSet> future : futures) {
+        future.cancel(false);
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      } else {
+        throw new Error.InternalError();
+      }
+    } catch (InterruptedException e) {
+      for (FutureTask<FactSet> future : futures) {
+        future.cancel(true);
       }
+      Thread.currentThread().interrupt();
+      throw new Error.Timeout();
+    }
+  }
+
+  /**
+   * Lists the fact sources the rule must be applied with in the current iteration
+   *
+   * <p>without a delta (first iteration), the rule is applied once over all the facts. Otherwise,
+   * there is one application per body predicate: the predicate at position i reads the delta, the
+   * ones before it read the facts that were already known before the delta, and the ones after it
+   * read all the facts, so that each new combination of facts is only produced once.
+   *
+   * <p>each list of sources comes with the join plan chosen for it
+   */
+  private List<Tuple2<JoinPlan, List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>>>>
+      factsSources(Rule rule, TrustedOrigins scope, FactSet delta) {
+    final List<Tuple2<JoinPlan, List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>>>> result =
+        new ArrayList<>();
+
+    if (delta == null) {
+      result.add(new Tuple2<>(rule.plan(this.facts), rule.factsSources(this.facts, scope)));
+      return result;
+    }
 
-      iterations += 1;
-      if (iterations >= limits.getMaxIterations()) {
-        throw new Error.TooManyIterations();
+    final Function<Predicate, Stream<Tuple2<Origin, Fact>>> oldFacts =
+        predicate ->
+            this.facts.stream(scope, predicate).filter(t -> !delta.contains(t._1, t._2));
+    final Function<Predicate, Stream<Tuple2<Origin, Fact>>> deltaFacts =
+        predicate -> delta.stream(scope, predicate);
+    final Function<Predicate, Stream<Tuple2<Origin, Fact>>> allFacts =
+        predicate -> this.facts.stream(scope, predicate);
+
+    final List<Predicate> body = rule.body();
+    for (int i = 0; i < body.size(); i++) {
+      final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> sources = new ArrayList<>();
+      final List<Integer> cardinalities = new ArrayList<>();
+      for (int j = 0; j < body.size(); j++) {
+        if (j < i) {
+          sources.add(oldFacts);
+          cardinalities.add(this.facts.cardinality(body.get(j)));
+        } else if (j == i) {
+          sources.add(deltaFacts);
+          cardinalities.add(delta.cardinality(body.get(j)));
+        } else {
+          sources.add(allFacts);
+          cardinalities.add(this.facts.cardinality(body.get(j)));
+        }
       }
+      result.add(new Tuple2<>(JoinPlan.plan(body, cardinalities), sources));
     }
+
+    return result;
+  }
+
+  /**
+   * Returns the join order that would be used to apply the rule to the current facts
+   *
+   * <p>this is meant for debugging, World.run plans each rule again at every iteration
+   */
+  public JoinPlan queryPlan(final Rule rule) {
+    return rule.plan(this.facts);
   }
 
+  /**
+   * Returns the facts of the world
+   *
+   * <p>facts must be added with addFact instead of through the returned set, so that the next
+   * run takes them into account
+   */
   public FactSet getFacts() {
     return this.facts;
   }
@@ -92,23 +384,57 @@ public final class World implements Serializable {
 
   public FactSet queryRule(final Rule rule, Long origin, TrustedOrigins scope, SymbolTable symbolTable)
       throws Error {
+    return queryRule(rule, origin, scope, symbolTable, RunLimits.Budget.UNLIMITED);
+  }
+
+  public FactSet queryRule(
+      final Rule rule,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error {
     final FactSet newFacts = new FactSet();
 
-    Supplier<Stream<Tuple2<Origin, Fact>>> factsSupplier = () -> this.facts.stream(scope);
+    rule.apply(
+        rule.plan(this.facts),
+        rule.factsSources(this.facts, scope),
+        origin,
+        symbolTable,
+        budget,
+        (o, fact) -> {
+          newFacts.add(o, fact);
+          return true;
+        });
 
-    Stream<Either<Error, Tuple2<Origin, Fact>>> stream = rule.apply(factsSupplier, origin, symbolTable);
-    for (Iterator<Either<Error, Tuple2<Origin, Fact>>> it = stream.iterator(); it.hasNext(); ) {
-      Either<Error, Tuple2<Origin, Fact>> res = it.next();
+    return newFacts;
+  }
 
-      if (res.isRight()) {
-        Tuple2<Origin, Fact> t2 = res.get();
-        newFacts.add(t2._1, t2._2);
-      } else {
-        throw res.getLeft();
-      }
+  /**
+   * Returns the facts generated by the query, only deriving the facts it depends on
+   *
+   * <p>if the world is not saturated, instead of running all the rules, this runs a copy of the
+   * world holding only the rules the query's body predicates depend on, specialized with the
+   * constants of the query (see {@link DemandRules}). This world is not modified, and the results
+   * are the same as running it first then calling {@link #queryRule}
+   */
+  public FactSet queryRuleOnDemand(
+      final Rule rule,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error {
+    if (isSaturated()) {
+      return queryRule(rule, origin, scope, symbolTable, budget);
     }
 
-    return newFacts;
+    final World demand = new World(this.facts);
+    for (Tuple3<Long, TrustedOrigins, Rule> t : DemandRules.rules(this.rules, rule.body())) {
+      demand.addRule(t._1, t._2, t._3);
+    }
+    demand.run(budget, symbolTable);
+    return demand.queryRule(rule, origin, scope, symbolTable, budget);
   }
 
   public boolean queryMatch(final Rule rule, Long origin, TrustedOrigins scope, SymbolTable symbolTable)
@@ -116,29 +442,72 @@ public final class World implements Serializable {
     return rule.findMatch(this.facts, origin, scope, symbolTable);
   }
 
+  public boolean queryMatch(
+      final Rule rule,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error {
+    return rule.findMatch(this.facts, origin, scope, symbolTable, budget);
+  }
+
   public boolean queryMatchAll(final Rule rule, TrustedOrigins scope, SymbolTable symbolTable)
       throws Error {
     return rule.checkMatchAll(this.facts, scope, symbolTable);
   }
 
+  public boolean queryMatchAll(
+      final Rule rule,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error {
+    return rule.checkMatchAll(this.facts, origin, scope, symbolTable, budget);
+  }
+
   public World() {
     this.facts = new FactSet();
     this.rules = new RuleSet();
+    this.pendingFacts = new FactSet();
+    this.pendingRules = new HashSet<>();
+    this.memoizedRules = new HashSet<>();
   }
 
   public World(FactSet facts) {
     this.facts = facts.clone();
     this.rules = new RuleSet();
+    this.pendingFacts = new FactSet();
+    this.pendingRules = new HashSet<>();
+    this.memoizedRules = new HashSet<>();
   }
 
   public World(FactSet facts, RuleSet rules) {
     this.facts = facts.clone();
     this.rules = rules.clone();
+    this.pendingFacts = new FactSet();
+    this.pendingRules = new HashSet<>();
+    this.memoizedRules = new HashSet<>();
+  }
+
+  @Override
+  public World copy() {
+    return new World(this);
+  }
+
+  @Override
+  public void compact() {
+    this.facts.compact();
   }
 
   public World(World w) {
     this.facts = w.facts.clone();
     this.rules = w.rules.clone();
+    this.saturated = w.saturated;
+    this.pendingFacts = w.pendingFacts.clone();
+    this.pendingRules = new HashSet<>(w.pendingRules);
+    this.memoizedRules = new HashSet<>(w.memoizedRules);
   }
 
   public String print(SymbolTable symbolTable) {
@@ -8,6 +8,7 @@ import io.vavr.control.Either;
 import io.vavr.control.Option;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Map;
 import java.util.Objects;
@@ -41,6 +42,44 @@ public final class Expression {
     }
   }
 
+  /**
+   * Evaluates the expression, reading the variables from a binding frame
+   *
+   * @param frame the values of the variables, indexed by slot
+   * @param slots for each op, the slot of the variable it pushes, or -1 if it is not a variable
+   */
+  public Term evaluate(Term[] frame, int[] slots, TemporarySymbolTable temporarySymbolTable)
+      throws Error.Execution {
+    return evaluate(frame, slots, temporarySymbolTable, new ArrayDeque<Term>(16));
+  }
+
+  /**
+   * Evaluates the expression, reading the variables from a binding frame and using the given
+   * stack, which is cleared first, so that it can be reused from one evaluation to the next
+   */
+  public Term evaluate(
+      Term[] frame, int[] slots, TemporarySymbolTable temporarySymbolTable, Deque<Term> stack)
+      throws Error.Execution {
+    stack.clear();
+    for (int i = 0; i < ops.size(); i++) {
+      if (slots[i] >= 0) {
+        Term value = frame[slots[i]];
+        if (value == null) {
+          throw new Error.Execution(
+              "cannot find a variable for index " + ((Op.Value) ops.get(i)).getValue());
+        }
+        stack.push(value);
+      } else {
+        ops.get(i).evaluate(stack, Collections.emptyMap(), temporarySymbolTable);
+      }
+    }
+    if (stack.size() == 1) {
+      return stack.pop();
+    } else {
+      throw new Error.Execution(this, "execution");
+    }
+  }
+
   public Option<String> print(SymbolTable symbolTable) {
     Deque<String> stack = new ArrayDeque<>();
     for (Op op : ops) {
@@ -128,12 +128,16 @@ public abstract class Op {
     @Override
     public void evaluate(Deque<Term> stack, Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
         throws Error.Execution {
+      // the operand is missing if the op that computes it failed on the types of its operands
+      if (stack.isEmpty()) {
+        throw new Error.Execution("missing operand for " + this.op);
+      }
       Term value = stack.pop();
       switch (this.op) {
         case Negate:
           if (value instanceof Term.Bool) {
             Term.Bool b = (Term.Bool) value;
-            stack.push(new Term.Bool(!b.value()));
+            stack.push(Term.Bool.of(!b.value()));
           } else {
             throw new Error.Execution("invalid type for negate op, expected boolean");
           }
@@ -148,15 +152,15 @@ public abstract class Op {
               throw new Error.Execution("string not found in symbols for id" + value);
             } else {
               try {
-                stack.push(new Term.Integer(s.get().getBytes("UTF-8").length));
+                stack.push(Term.Integer.of(s.get().getBytes("UTF-8").length));
               } catch (UnsupportedEncodingException e) {
                 throw new Error.Execution("cannot calculate string length: " + e.toString());
               }
             }
           } else if (value instanceof Term.Bytes) {
-            stack.push(new Term.Integer(((Term.Bytes) value).value().length));
+            stack.push(Term.Integer.of(((Term.Bytes) value).value().length));
           } else if (value instanceof Term.Set) {
-            stack.push(new Term.Integer(((Term.Set) value).value().size()));
+            stack.push(Term.Integer.of(((Term.Set) value).value().size()));
           } else {
             throw new Error.Execution("invalid type for length op");
           }
@@ -289,6 +293,10 @@ public abstract class Op {
     @Override
     public void evaluate(Deque<Term> stack, Map<Long, Term> variables, TemporarySymbolTable temporarySymbolTable)
         throws Error.Execution {
+      // an operand is missing if the op that computes it failed on the types of its operands
+      if (stack.size() < 2) {
+        throw new Error.Execution("missing operand for " + this.op);
+      }
       Term right = stack.pop();
       Term left = stack.pop();
 
@@ -296,89 +304,89 @@ public abstract class Op {
         case LessThan:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             stack.push(
-                new Term.Bool(((Term.Integer) left).value() < ((Term.Integer) right).value()));
+                Term.Bool.of(((Term.Integer) left).value() < ((Term.Integer) right).value()));
           }
           if (right instanceof Term.Date && left instanceof Term.Date) {
-            stack.push(new Term.Bool(((Term.Date) left).value() < ((Term.Date) right).value()));
+            stack.push(Term.Bool.of(((Term.Date) left).value() < ((Term.Date) right).value()));
           }
           break;
         case GreaterThan:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             stack.push(
-                new Term.Bool(((Term.Integer) left).value() > ((Term.Integer) right).value()));
+                Term.Bool.of(((Term.Integer) left).value() > ((Term.Integer) right).value()));
           }
           if (right instanceof Term.Date && left instanceof Term.Date) {
-            stack.push(new Term.Bool(((Term.Date) left).value() > ((Term.Date) right).value()));
+            stack.push(Term.Bool.of(((Term.Date) left).value() > ((Term.Date) right).value()));
           }
           break;
         case LessOrEqual:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             stack.push(
-                new Term.Bool(((Term.Integer) left).value() <= ((Term.Integer) right).value()));
+                Term.Bool.of(((Term.Integer) left).value() <= ((Term.Integer) right).value()));
           }
           if (right instanceof Term.Date && left instanceof Term.Date) {
-            stack.push(new Term.Bool(((Term.Date) left).value() <= ((Term.Date) right).value()));
+            stack.push(Term.Bool.of(((Term.Date) left).value() <= ((Term.Date) right).value()));
           }
           break;
         case GreaterOrEqual:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             stack.push(
-                new Term.Bool(((Term.Integer) left).value() >= ((Term.Integer) right).value()));
+                Term.Bool.of(((Term.Integer) left).value() >= ((Term.Integer) right).value()));
           }
           if (right instanceof Term.Date && left instanceof Term.Date) {
-            stack.push(new Term.Bool(((Term.Date) left).value() >= ((Term.Date) right).value()));
+            stack.push(Term.Bool.of(((Term.Date) left).value() >= ((Term.Date) right).value()));
           }
           break;
         case Equal:
           if (right instanceof Term.Bool && left instanceof Term.Bool) {
-            stack.push(new Term.Bool(((Term.Bool) left).value() == ((Term.Bool) right).value()));
+            stack.push(Term.Bool.of(((Term.Bool) left).value() == ((Term.Bool) right).value()));
           }
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             stack.push(
-                new Term.Bool(((Term.Integer) left).value() == ((Term.Integer) right).value()));
+                Term.Bool.of(((Term.Integer) left).value() == ((Term.Integer) right).value()));
           }
           if (right instanceof Term.Str && left instanceof Term.Str) {
-            stack.push(new Term.Bool(((Term.Str) left).value() == ((Term.Str) right).value()));
+            stack.push(Term.Bool.of(((Term.Str) left).value() == ((Term.Str) right).value()));
           }
           if (right instanceof Term.Bytes && left instanceof Term.Bytes) {
             stack.push(
-                new Term.Bool(
+                Term.Bool.of(
                     Arrays.equals(((Term.Bytes) left).value(), (((Term.Bytes) right).value()))));
           }
           if (right instanceof Term.Date && left instanceof Term.Date) {
-            stack.push(new Term.Bool(((Term.Date) left).value() == ((Term.Date) right).value()));
+            stack.push(Term.Bool.of(((Term.Date) left).value() == ((Term.Date) right).value()));
           }
           if (right instanceof Term.Set && left instanceof Term.Set) {
             Set<Term> leftSet = ((Term.Set) left).value();
             Set<Term> rightSet = ((Term.Set) right).value();
             stack.push(
-                new Term.Bool(leftSet.size() == rightSet.size() && leftSet.containsAll(rightSet)));
+                Term.Bool.of(leftSet.size() == rightSet.size() && leftSet.containsAll(rightSet)));
           }
           break;
         case NotEqual:
           if (right instanceof Term.Bool && left instanceof Term.Bool) {
-            stack.push(new Term.Bool(((Term.Bool) left).value() == ((Term.Bool) right).value()));
+            stack.push(Term.Bool.of(((Term.Bool) left).value() == ((Term.Bool) right).value()));
           }
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             stack.push(
-                new Term.Bool(((Term.Integer) left).value() != ((Term.Integer) right).value()));
+                Term.Bool.of(((Term.Integer) left).value() != ((Term.Integer) right).value()));
           }
           if (right instanceof Term.Str && left instanceof Term.Str) {
-            stack.push(new Term.Bool(((Term.Str) left).value() != ((Term.Str) right).value()));
+            stack.push(Term.Bool.of(((Term.Str) left).value() != ((Term.Str) right).value()));
           }
           if (right instanceof Term.Bytes && left instanceof Term.Bytes) {
             stack.push(
-                new Term.Bool(
+                Term.Bool.of(
                     !Arrays.equals(((Term.Bytes) left).value(), (((Term.Bytes) right).value()))));
           }
           if (right instanceof Term.Date && left instanceof Term.Date) {
-            stack.push(new Term.Bool(((Term.Date) left).value() != ((Term.Date) right).value()));
+            stack.push(Term.Bool.of(((Term.Date) left).value() != ((Term.Date) right).value()));
           }
           if (right instanceof Term.Set && left instanceof Term.Set) {
             Set<Term> leftSet = ((Term.Set) left).value();
             Set<Term> rightSet = ((Term.Set) right).value();
             stack.push(
-                new Term.Bool(leftSet.size() != rightSet.size() || !leftSet.containsAll(rightSet)));
+                Term.Bool.of(leftSet.size() != rightSet.size() || !leftSet.containsAll(rightSet)));
           }
           break;
         case Contains:
@@ -389,12 +397,12 @@ public abstract class Op {
                   || right instanceof Term.Date
                   || right instanceof Term.Bool)) {
 
-            stack.push(new Term.Bool(((Term.Set) left).value().contains(right)));
+            stack.push(Term.Bool.of(((Term.Set) left).value().contains(right)));
           }
           if (right instanceof Term.Set && left instanceof Term.Set) {
             Set<Term> leftSet = ((Term.Set) left).value();
             Set<Term> rightSet = ((Term.Set) right).value();
-            stack.push(new Term.Bool(leftSet.containsAll(rightSet)));
+            stack.push(Term.Bool.of(leftSet.containsAll(rightSet)));
           }
           if (left instanceof Term.Str && right instanceof Term.Str) {
             Option<String> leftS = temporarySymbolTable.getSymbol((int) ((Term.Str) left).value());
@@ -409,7 +417,7 @@ public abstract class Op {
                   "cannot find string in symbols for index " + ((Term.Str) right).value());
             }
 
-            stack.push(new Term.Bool(leftS.get().contains(rightS.get())));
+            stack.push(Term.Bool.of(leftS.get().contains(rightS.get())));
           }
           break;
         case Prefix:
@@ -425,7 +433,7 @@ public abstract class Op {
                   "cannot find string in symbols for index " + ((Term.Str) right).value());
             }
 
-            stack.push(new Term.Bool(leftS.get().startsWith(rightS.get())));
+            stack.push(Term.Bool.of(leftS.get().startsWith(rightS.get())));
           }
           break;
         case Suffix:
@@ -440,7 +448,7 @@ public abstract class Op {
               throw new Error.Execution(
                   "cannot find string in symbols for index " + ((Term.Str) right).value());
             }
-            stack.push(new Term.Bool(leftS.get().endsWith(rightS.get())));
+            stack.push(Term.Bool.of(leftS.get().endsWith(rightS.get())));
           }
           break;
         case Regex:
@@ -458,14 +466,14 @@ public abstract class Op {
 
             Pattern p = Pattern.compile(rightS.get());
             Matcher m = p.matcher(leftS.get());
-            stack.push(new Term.Bool(m.find()));
+            stack.push(Term.Bool.of(m.find()));
           }
           break;
         case Add:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             try {
               stack.push(
-                  new Term.Integer(
+                  Term.Integer.of(
                       Math.addExact(
                           ((Term.Integer) left).value(), ((Term.Integer) right).value())));
             } catch (ArithmeticException e) {
@@ -494,7 +502,7 @@ public abstract class Op {
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             try {
               stack.push(
-                  new Term.Integer(
+                  Term.Integer.of(
                       Math.subtractExact(
                           ((Term.Integer) left).value(), ((Term.Integer) right).value())));
             } catch (ArithmeticException e) {
@@ -506,7 +514,7 @@ public abstract class Op {
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             try {
               stack.push(
-                  new Term.Integer(
+                  Term.Integer.of(
                       Math.multiplyExact(
                           ((Term.Integer) left).value(), ((Term.Integer) right).value())));
             } catch (ArithmeticException e) {
@@ -518,18 +526,18 @@ public abstract class Op {
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             long rl = ((Term.Integer) right).value();
             if (rl != 0) {
-              stack.push(new Term.Integer(((Term.Integer) left).value() / rl));
+              stack.push(Term.Integer.of(((Term.Integer) left).value() / rl));
             }
           }
           break;
         case And:
           if (right instanceof Term.Bool && left instanceof Term.Bool) {
-            stack.push(new Term.Bool(((Term.Bool) left).value() && ((Term.Bool) right).value()));
+            stack.push(Term.Bool.of(((Term.Bool) left).value() && ((Term.Bool) right).value()));
           }
           break;
         case Or:
           if (right instanceof Term.Bool && left instanceof Term.Bool) {
-            stack.push(new Term.Bool(((Term.Bool) left).value() || ((Term.Bool) right).value()));
+            stack.push(Term.Bool.of(((Term.Bool) left).value() || ((Term.Bool) right).value()));
           }
           break;
         case Intersection:
@@ -559,21 +567,21 @@ public abstract class Op {
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             long r = ((Term.Integer) right).value();
             long l = ((Term.Integer) left).value();
-            stack.push(new Term.Integer(r & l));
+            stack.push(Term.Integer.of(r & l));
           }
           break;
         case BitwiseOr:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             long r = ((Term.Integer) right).value();
             long l = ((Term.Integer) left).value();
-            stack.push(new Term.Integer(r | l));
+            stack.push(Term.Integer.of(r | l));
           }
           break;
         case BitwiseXor:
           if (right instanceof Term.Integer && left instanceof Term.Integer) {
             long r = ((Term.Integer) right).value();
             long l = ((Term.Integer) left).value();
-            stack.push(new Term.Integer(r ^ l));
+            stack.push(Term.Integer.of(r ^ l));
           }
           break;
         default:
@@ -634,6 +634,36 @@ public class Error extends Exception {
     }
   }
 
+  public static final class Cancelled extends Error {
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      return o != null && getClass() == o.getClass();
+    }
+
+    @Override
+    public JsonElement toJson() {
+      return new JsonPrimitive("Cancelled");
+    }
+  }
+
+  public static final class TooManyJoinCandidates extends Error {
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      return o != null && getClass() == o.getClass();
+    }
+
+    @Override
+    public JsonElement toJson() {
+      return new JsonPrimitive("TooManyJoinCandidates");
+    }
+  }
+
   public static final class Execution extends Error {
     public enum Kind {
       Execution,
@@ -6,8 +6,8 @@ import static io.vavr.API.Right;
 import io.vavr.Tuple2;
 import io.vavr.control.Either;
 import io.vavr.control.Option;
-import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -16,15 +16,21 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.stream.Collectors;
 import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.datalog.Engine;
 import org.biscuitsec.biscuit.datalog.FactSet;
 import org.biscuitsec.biscuit.datalog.Origin;
 import org.biscuitsec.biscuit.datalog.RuleSet;
+import org.biscuitsec.biscuit.datalog.RuleStats;
 import org.biscuitsec.biscuit.datalog.RunLimits;
 import org.biscuitsec.biscuit.datalog.Scope;
 import org.biscuitsec.biscuit.datalog.SymbolTable;
 import org.biscuitsec.biscuit.datalog.TrustedOrigins;
+import org.biscuitsec.biscuit.datalog.Trace;
 import org.biscuitsec.biscuit.datalog.World;
 import org.biscuitsec.biscuit.error.Error;
 import org.biscuitsec.biscuit.error.FailedCheck;
@@ -42,10 +48,15 @@ public final class Authorizer {
   private final List<Policy> policies;
   private final List<Scope> scopes;
   private final HashMap<Long, List<Long>> publicKeyToBlockId;
-  private final World world;
+  private final Engine world;
   private final SymbolTable symbolTable;
+  private DerivedFactsCache derivedFactsCache = null;
+  private RuleStats stats = null;
+  private Trace trace = null;
+  private boolean parallelChecks = false;
+  private boolean failFast = false;
 
-  private Authorizer(Biscuit token, World w) throws Error.FailedLogic {
+  private Authorizer(Biscuit token, Engine w) throws Error.FailedLogic {
     this.token = token;
     this.world = w;
     this.symbolTable = new SymbolTable(this.token.symbolTable);
@@ -63,7 +74,16 @@ public final class Authorizer {
    * cloned for each new request
    */
   public Authorizer() {
-    this.world = new World();
+    this(new World());
+  }
+
+  /**
+   * Creates an empty authorizer evaluating the Datalog with another engine than {@link World}
+   *
+   * <p>the engine must be empty, and is owned by the authorizer
+   */
+  public Authorizer(Engine engine) {
+    this.world = engine;
     this.symbolTable = Biscuit.defaultSymbolTable();
     this.checks = new ArrayList<>();
     this.policies = new ArrayList<>();
@@ -75,7 +95,7 @@ public final class Authorizer {
       Biscuit token,
       List<org.biscuitsec.biscuit.token.builder.Check> checks,
       List<Policy> policies,
-      World world,
+      Engine world,
       SymbolTable symbolTable) {
     this.token = token;
     this.checks = checks;
@@ -98,13 +118,124 @@ public final class Authorizer {
     return new Authorizer(token, new World());
   }
 
+  /**
+   * Creates a authorizer for a token, evaluating the Datalog with another engine than {@link
+   * World}
+   *
+   * @param engine an empty engine, owned by the authorizer
+   */
+  public static Authorizer make(Biscuit token, Engine engine) throws Error.FailedLogic {
+    return new Authorizer(token, engine);
+  }
+
   public Authorizer clone() {
-    return new Authorizer(
-        this.token,
-        new ArrayList<>(this.checks),
-        new ArrayList<>(this.policies),
-        new World(this.world),
-        new SymbolTable(this.symbolTable));
+    Authorizer authorizer =
+        new Authorizer(
+            this.token,
+            new ArrayList<>(this.checks),
+            new ArrayList<>(this.policies),
+            this.world.copy(),
+            new SymbolTable(this.symbolTable));
+    authorizer.derivedFactsCache = this.derivedFactsCache;
+    authorizer.stats = this.stats;
+    authorizer.parallelChecks = this.parallelChecks;
+    authorizer.failFast = this.failFast;
+    return authorizer;
+  }
+
+  /**
+   * Records the execution statistics of the rules, checks and policies in authorize and query
+   *
+   * <p>the clones of this authorizer record them in the same object, so statistics set on a
+   * preloaded authorizer accumulate over all the requests. Since the requests' tokens bring their
+   * own rules, the statistics keep a bounded number of entries and count the invocations that did
+   * not fit, see {@link RuleStats#dropped()}. Null stops recording them
+   */
+  public Authorizer setStats(RuleStats stats) {
+    this.stats = stats;
+    return this;
+  }
+
+  /** The execution statistics, empty unless set with {@link #setStats} */
+  public Option<RuleStats> getStats() {
+    return Option.of(this.stats);
+  }
+
+  /**
+   * Records in authorize how the facts were generated and how each check and policy was answered
+   *
+   * <p>unlike the statistics, the trace is not kept by the clones of this authorizer, so it only
+   * describes the authorizations of this one: to trace a sample of the requests, set a trace on
+   * the authorizers of those requests. Null stops tracing, see {@link Trace}
+   */
+  public Authorizer setTrace(Trace trace) {
+    this.trace = trace;
+    return this;
+  }
+
+  /** The trace, empty unless set with {@link #setTrace} */
+  public Option<Trace> getTrace() {
+    return Option.of(this.trace);
+  }
+
+  /** Formats the trace with this authorizer's symbols, empty unless set with {@link #setTrace} */
+  public Option<String> explain() {
+    return Option.of(this.trace).map(trace -> trace.format(this.symbolTable));
+  }
+
+  /**
+   * Uses a cache of the facts generated by the token's rules, shared with other authorizers
+   *
+   * <p>the clones of this authorizer use the same cache, see {@link DerivedFactsCache}
+   */
+  public Authorizer setDerivedFactsCache(DerivedFactsCache cache) {
+    this.derivedFactsCache = cache;
+    return this;
+  }
+
+  /**
+   * Evaluates the checks of authorize concurrently, on the executor of the run limits
+   *
+   * <p>once the rules have run, the checks only read the facts, so they can be evaluated
+   * independently: the failed checks are listed, and the first error is thrown, in the same order
+   * as a sequential evaluation, and the deadline applies to all of them. The policies are still
+   * evaluated in order, while the blocks' checks run, but they are all converted to the symbol
+   * table first, as are the checks. Without an executor in the limits, the checks are evaluated
+   * sequentially. The queries of the engine must be safe to call concurrently, as they are for
+   * {@link World}
+   */
+  public Authorizer setParallelChecks(boolean parallelChecks) {
+    this.parallelChecks = parallelChecks;
+    return this;
+  }
+
+  /**
+   * Stops authorize at the first reason to deny the request, instead of listing all the failed
+   * checks
+   *
+   * <p>the policies are evaluated first: if none matches, or a deny policy matches, no check is
+   * evaluated. Otherwise, the checks are evaluated from the cheapest to the most expensive, as
+   * estimated from the number of facts their queries can match, until one fails. The error then
+   * lists only that check, or no check at all. Whether the request is allowed does not change,
+   * but which failed check or which error is reported can. With {@link #setParallelChecks}, the
+   * checks are all started, and the remaining ones are cancelled after the first failure
+   */
+  public Authorizer setFailFast(boolean failFast) {
+    this.failFast = failFast;
+    return this;
+  }
+
+  /**
+   * Stores the facts loaded so far in a compact, columnar form, shared by the clones of this
+   * authorizer
+   *
+   * <p>meant for an authorizer preloaded with many facts then cloned for each request: call it
+   * once the facts are loaded, before cloning. The facts added afterwards, and those generated by
+   * authorize, are stored as usual, see {@link FactSet#compact()}
+   */
+  public Authorizer compactFacts() {
+    this.world.compact();
+    return this;
   }
 
   public void updateOnToken() throws Error.FailedLogic {
@@ -360,6 +491,43 @@ public final class Authorizer {
   }
 
   public Set<org.biscuitsec.biscuit.token.builder.Fact> query(String s) throws Error {
+    return query(parseQuery(s));
+  }
+
+  public Set<org.biscuitsec.biscuit.token.builder.Fact> query(
+      org.biscuitsec.biscuit.token.builder.Rule query, RunLimits limits) throws Error {
+    return query(query, limits, false);
+  }
+
+  public Set<org.biscuitsec.biscuit.token.builder.Fact> query(String s, RunLimits limits)
+      throws Error {
+    return query(parseQuery(s), limits);
+  }
+
+  public Set<org.biscuitsec.biscuit.token.builder.Fact> demandQuery(String s) throws Error {
+    return demandQuery(parseQuery(s), new RunLimits());
+  }
+
+  public Set<org.biscuitsec.biscuit.token.builder.Fact> demandQuery(String s, RunLimits limits)
+      throws Error {
+    return demandQuery(parseQuery(s), limits);
+  }
+
+  /**
+   * Runs a query, only deriving the facts it depends on
+   *
+   * <p>instead of running all the rules of the authorizer and the token before the query, this
+   * only evaluates the rules that can produce facts for the query's body, specialized with the
+   * query's constants, in a copy of the world. The results are the same as with {@link
+   * #query(org.biscuitsec.biscuit.token.builder.Rule, RunLimits)}, and the authorizer is not
+   * modified. If it was already run, by authorize or a previous query, its facts are used as is
+   */
+  public Set<org.biscuitsec.biscuit.token.builder.Fact> demandQuery(
+      org.biscuitsec.biscuit.token.builder.Rule query, RunLimits limits) throws Error {
+    return query(query, limits, true);
+  }
+
+  private org.biscuitsec.biscuit.token.builder.Rule parseQuery(String s) throws Error.Parser {
     Either<
             org.biscuitsec.biscuit.token.builder.parser.Error,
             Tuple2<String, org.biscuitsec.biscuit.token.builder.Rule>>
@@ -369,14 +537,16 @@ public final class Authorizer {
       throw new Error.Parser(res.getLeft());
     }
 
-    Tuple2<String, org.biscuitsec.biscuit.token.builder.Rule> t = res.get();
-
-    return query(t._2);
+    return res.get()._2;
   }
 
-  public Set<org.biscuitsec.biscuit.token.builder.Fact> query(
-      org.biscuitsec.biscuit.token.builder.Rule query, RunLimits limits) throws Error {
-    world.run(limits, symbolTable);
+  private Set<org.biscuitsec.biscuit.token.builder.Fact> query(
+      org.biscuitsec.biscuit.token.builder.Rule query, RunLimits limits, boolean onDemand)
+      throws Error {
+    RunLimits.Budget budget = limits.start(this.stats);
+    if (!onDemand) {
+      runWorld(budget);
+    }
 
     org.biscuitsec.biscuit.datalog.Rule rule = query.convert(symbolTable);
     TrustedOrigins ruleTrustedorigins =
@@ -386,7 +556,10 @@ public final class Authorizer {
             Long.MAX_VALUE,
             this.publicKeyToBlockId);
 
-    FactSet facts = world.queryRule(rule, Long.MAX_VALUE, ruleTrustedorigins, symbolTable);
+    FactSet facts =
+        onDemand
+            ? world.queryRuleOnDemand(rule, Long.MAX_VALUE, ruleTrustedorigins, symbolTable, budget)
+            : world.queryRule(rule, Long.MAX_VALUE, ruleTrustedorigins, symbolTable, budget);
     Set<org.biscuitsec.biscuit.token.builder.Fact> s = new HashSet<>();
 
     for (Iterator<org.biscuitsec.biscuit.datalog.Fact> it = facts.stream().iterator();
@@ -398,20 +571,66 @@ public final class Authorizer {
     return s;
   }
 
-  public Set<org.biscuitsec.biscuit.token.builder.Fact> query(String s, RunLimits limits)
-      throws Error {
-    Either<
-            org.biscuitsec.biscuit.token.builder.parser.Error,
-            Tuple2<String, org.biscuitsec.biscuit.token.builder.Rule>>
-        res = Parser.rule(s);
-
-    if (res.isLeft()) {
-      throw new Error.Parser(res.getLeft());
+  /**
+   * Runs the world, starting from the facts the token's rules generated for a previous authorizer
+   * of the same token if there is a derived facts cache
+   *
+   * <p>on a cache miss, the token's facts and rules are run in a separate world, and the facts
+   * they generate are cached. The token's rules that can only use the token's facts, and the facts
+   * they generate, are then skipped by the first iteration of the run, see {@link
+   * World#addMemoized}. Facts from the token never include the authorizer's origin, while facts
+   * that depend on the authorizer's facts or rules always do
+   */
+  private void runWorld(RunLimits.Budget budget) throws Error {
+    if (this.derivedFactsCache == null || this.token == null || this.world.isSaturated()) {
+      world.run(budget, symbolTable);
+      return;
     }
 
-    Tuple2<String, org.biscuitsec.biscuit.token.builder.Rule> t = res.get();
+    final Origin authorizerOrigin = Origin.authorizer();
+    List<Tuple2<Origin, org.biscuitsec.biscuit.token.builder.Fact>> derived =
+        this.derivedFactsCache.get(this.token);
+    FactSet memoized = new FactSet();
+    if (derived == null) {
+      World tokenWorld = new World();
+      world
+          .getFacts()
+          .stream(origin -> !origin.containsAll(authorizerOrigin))
+          .forEach(t -> tokenWorld.addFact(t._1, t._2));
+      for (Map.Entry<TrustedOrigins, List<Tuple2<Long, org.biscuitsec.biscuit.datalog.Rule>>>
+          entry : world.getRules().getRules().entrySet()) {
+        for (Tuple2<Long, org.biscuitsec.biscuit.datalog.Rule> t : entry.getValue()) {
+          if (t._1 != Long.MAX_VALUE) {
+            tokenWorld.addRule(t._1, entry.getKey(), t._2);
+          }
+        }
+      }
+      tokenWorld.run(budget, symbolTable);
+
+      derived = new ArrayList<>();
+      for (Iterator<Tuple2<Origin, org.biscuitsec.biscuit.datalog.Fact>> it =
+              tokenWorld.getFacts().stream(origin -> true).iterator();
+          it.hasNext(); ) {
+        Tuple2<Origin, org.biscuitsec.biscuit.datalog.Fact> t = it.next();
+        if (!world.getFacts().contains(t._1, t._2)) {
+          derived.add(
+              new Tuple2<>(
+                  t._1, org.biscuitsec.biscuit.token.builder.Fact.convertFrom(t._2, symbolTable)));
+          memoized.add(t._1, t._2);
+        }
+      }
+      this.derivedFactsCache.put(this.token, derived);
+    } else {
+      for (Tuple2<Origin, org.biscuitsec.biscuit.token.builder.Fact> t : derived) {
+        memoized.add(t._1, t._2.convert(symbolTable));
+      }
+    }
 
-    return query(t._2, limits);
+    world.addMemoized(
+        memoized,
+        world.closedRules(
+            origin -> origin != Long.MAX_VALUE, origin -> !origin.containsAll(authorizerOrigin)));
+    world.run(budget, symbolTable);
   }
 
   public Long authorize() throws Error {
@@ -419,47 +638,17 @@ public final class Authorizer {
   }
 
   public Long authorize(RunLimits limits) throws Error {
-    Instant timeLimit = Instant.now().plus(limits.getMaxTime());
+    RunLimits.Budget budget = limits.start(this.stats, this.trace);
     List<FailedCheck> errors = new LinkedList<>();
 
     TrustedOrigins authorizerTrustedOrigins = this.authorizerTrustedOrigins();
 
-    world.run(limits, symbolTable);
+    runWorld(budget);
 
+    List<PendingCheck> pending = new ArrayList<>();
     for (int i = 0; i < this.checks.size(); i++) {
       org.biscuitsec.biscuit.datalog.Check c = this.checks.get(i).convert(symbolTable);
-      boolean successful = false;
-
-      for (int j = 0; j < c.queries().size(); j++) {
-        boolean res = false;
-        org.biscuitsec.biscuit.datalog.Rule query = c.queries().get(j);
-        TrustedOrigins ruleTrustedOrigins =
-            TrustedOrigins.fromScopes(
-                query.scopes(), authorizerTrustedOrigins, Long.MAX_VALUE, this.publicKeyToBlockId);
-        switch (c.kind()) {
-          case ONE:
-            res = world.queryMatch(query, Long.MAX_VALUE, ruleTrustedOrigins, symbolTable);
-            break;
-          case ALL:
-            res = world.queryMatchAll(query, ruleTrustedOrigins, symbolTable);
-            break;
-          default:
-            throw new RuntimeException("unmapped kind");
-        }
-
-        if (Instant.now().compareTo(timeLimit) >= 0) {
-          throw new Error.Timeout();
-        }
-
-        if (res) {
-          successful = true;
-          break;
-        }
-      }
-
-      if (!successful) {
-        errors.add(new FailedCheck.FailedAuthorizer(i, symbolTable.formatCheck(c)));
-      }
+      pending.add(new PendingCheck(c, Long.MAX_VALUE, authorizerTrustedOrigins, -1, i));
     }
 
     if (token != null) {
@@ -471,73 +660,95 @@ public final class Authorizer {
               this.publicKeyToBlockId);
 
       for (int j = 0; j < token.authority.getChecks().size(); j++) {
-        boolean successful = false;
-
         org.biscuitsec.biscuit.token.builder.Check c =
             org.biscuitsec.biscuit.token.builder.Check.convertFrom(
                 token.authority.getChecks().get(j), token.symbolTable);
-        org.biscuitsec.biscuit.datalog.Check check = c.convert(symbolTable);
-
-        for (int k = 0; k < check.queries().size(); k++) {
-          boolean res = false;
-          org.biscuitsec.biscuit.datalog.Rule query = check.queries().get(k);
-          TrustedOrigins ruleTrustedOrigins =
-              TrustedOrigins.fromScopes(
-                  query.scopes(), authorityTrustedOrigins, 0, this.publicKeyToBlockId);
-          switch (check.kind()) {
-            case ONE:
-              res = world.queryMatch(query, (long) 0, ruleTrustedOrigins, symbolTable);
-              break;
-            case ALL:
-              res = world.queryMatchAll(query, ruleTrustedOrigins, symbolTable);
+        pending.add(new PendingCheck(c.convert(symbolTable), 0, authorityTrustedOrigins, 0, j));
+      }
+    }
+    final int leadingChecks = pending.size();
+
+    Executor executor = this.parallelChecks ? limits.getExecutor().orElse(null) : null;
+    if (this.failFast) {
+      Option<Either<Integer, Integer>> policyResult =
+          matchPolicy(null, authorizerTrustedOrigins, budget);
+      if (policyResult.isDefined() && policyResult.get().isRight()) {
+        pending.addAll(blockChecks());
+        FactSet facts = world.getFacts();
+        for (PendingCheck p : pending) {
+          p.estimateCost(facts);
+        }
+        // stable, so checks of the same cost stay in the sequential order
+        pending.sort(Comparator.comparingDouble(p -> p.cost));
+
+        CheckResults results = new CheckResults(pending, budget, executor);
+        try {
+          for (int i = 0; i < pending.size(); i++) {
+            if (!results.successful(i)) {
+              errors.add(pending.get(i).failed(symbolTable));
               break;
-            default:
-              throw new RuntimeException("unmapped kind");
-          }
-
-          if (Instant.now().compareTo(timeLimit) >= 0) {
-            throw new Error.Timeout();
+            }
           }
+        } finally {
+          results.cancel();
+        }
+      }
+      return authorizationResult(policyResult, errors);
+    }
 
-          if (res) {
-            successful = true;
-            break;
-          }
+    if (executor == null) {
+      for (PendingCheck p : pending) {
+        if (!evaluate(p, budget)) {
+          errors.add(p.failed(symbolTable));
         }
+      }
 
-        if (!successful) {
-          errors.add(new FailedCheck.FailedBlock(0, j, symbolTable.formatCheck(check)));
+      Option<Either<Integer, Integer>> policyResult =
+          matchPolicy(null, authorizerTrustedOrigins, budget);
+
+      for (PendingCheck p : blockChecks()) {
+        if (!evaluate(p, budget)) {
+          errors.add(p.failed(symbolTable));
         }
       }
-    }
 
-    Option<Either<Integer, Integer>> policyResult = Option.none();
-    policies_test:
-    for (int i = 0; i < this.policies.size(); i++) {
-      Policy policy = this.policies.get(i);
+      return authorizationResult(policyResult, errors);
+    }
 
-      for (int j = 0; j < policy.queries().size(); j++) {
-        org.biscuitsec.biscuit.datalog.Rule query = policy.queries().get(j).convert(symbolTable);
-        TrustedOrigins policyTrustedOrigins =
-            TrustedOrigins.fromScopes(
-                query.scopes(), authorizerTrustedOrigins, Long.MAX_VALUE, this.publicKeyToBlockId);
-        boolean res = world.queryMatch(query, Long.MAX_VALUE, policyTrustedOrigins, symbolTable);
+    // the policies and the blocks' checks are converted before the checks start, since converting
+    // them adds symbols that the concurrent checks could not safely read
+    List<List<org.biscuitsec.biscuit.datalog.Rule>> policyQueries = new ArrayList<>();
+    for (Policy policy : this.policies) {
+      policyQueries.add(convertQueries(policy));
+    }
+    pending.addAll(blockChecks());
 
-        if (Instant.now().compareTo(timeLimit) >= 0) {
-          throw new Error.Timeout();
+    CheckResults results = new CheckResults(pending, budget, executor);
+    try {
+      for (int i = 0; i < leadingChecks; i++) {
+        if (!results.successful(i)) {
+          errors.add(pending.get(i).failed(symbolTable));
         }
+      }
 
-        if (res) {
-          if (this.policies.get(i).kind() == Policy.Kind.ALLOW) {
-            policyResult = Option.some(Right(i));
-          } else {
-            policyResult = Option.some(Left(i));
-          }
-          break policies_test;
+      Option<Either<Integer, Integer>> policyResult =
+          matchPolicy(policyQueries, authorizerTrustedOrigins, budget);
+
+      for (int i = leadingChecks; i < pending.size(); i++) {
+        if (!results.successful(i)) {
+          errors.add(pending.get(i).failed(symbolTable));
         }
       }
+
+      return authorizationResult(policyResult, errors);
+    } finally {
+      results.cancel();
     }
+  }
 
+  // converts the checks of the token's attenuation blocks
+  private List<PendingCheck> blockChecks() {
+    List<PendingCheck> pending = new ArrayList<>();
     if (token != null) {
       for (int i = 0; i < token.blocks.size(); i++) {
         org.biscuitsec.biscuit.token.Block b = token.blocks.get(i);
@@ -550,47 +761,59 @@ public final class Authorizer {
         }
 
         for (int j = 0; j < b.getChecks().size(); j++) {
-          boolean successful = false;
-
           org.biscuitsec.biscuit.token.builder.Check c =
               org.biscuitsec.biscuit.token.builder.Check.convertFrom(
                   b.getChecks().get(j), blockSymbolTable);
-          org.biscuitsec.biscuit.datalog.Check check = c.convert(symbolTable);
-
-          for (int k = 0; k < check.queries().size(); k++) {
-            boolean res = false;
-            org.biscuitsec.biscuit.datalog.Rule query = check.queries().get(k);
-            TrustedOrigins ruleTrustedOrigins =
-                TrustedOrigins.fromScopes(
-                    query.scopes(), blockTrustedOrigins, i + 1, this.publicKeyToBlockId);
-            switch (check.kind()) {
-              case ONE:
-                res = world.queryMatch(query, (long) i + 1, ruleTrustedOrigins, symbolTable);
-                break;
-              case ALL:
-                res = world.queryMatchAll(query, ruleTrustedOrigins, symbolTable);
-                break;
-              default:
-                throw new RuntimeException("unmapped kind");
-            }
+          pending.add(
+              new PendingCheck(c.convert(symbolTable), i + 1, blockTrustedOrigins, i + 1, j));
+        }
+      }
+    }
+    return pending;
+  }
 
-            if (Instant.now().compareTo(timeLimit) >= 0) {
-              throw new Error.Timeout();
-            }
+  private List<org.biscuitsec.biscuit.datalog.Rule> convertQueries(Policy policy) {
+    List<org.biscuitsec.biscuit.datalog.Rule> queries = new ArrayList<>();
+    for (org.biscuitsec.biscuit.token.builder.Rule query : policy.queries()) {
+      queries.add(query.convert(symbolTable));
+    }
+    return queries;
+  }
 
-            if (res) {
-              successful = true;
-              break;
-            }
-          }
+  // returns the index of the first matching policy, on the right for an allow policy and on the
+  // left for a deny policy. Without converted queries, the policies are converted as they are
+  // evaluated, so the ones after the matching policy add no symbols
+  private Option<Either<Integer, Integer>> matchPolicy(
+      List<List<org.biscuitsec.biscuit.datalog.Rule>> policyQueries,
+      TrustedOrigins authorizerTrustedOrigins,
+      RunLimits.Budget budget)
+      throws Error {
+    for (int i = 0; i < this.policies.size(); i++) {
+      List<org.biscuitsec.biscuit.datalog.Rule> queries =
+          policyQueries == null ? convertQueries(this.policies.get(i)) : policyQueries.get(i);
+      for (org.biscuitsec.biscuit.datalog.Rule query : queries) {
+        TrustedOrigins policyTrustedOrigins =
+            TrustedOrigins.fromScopes(
+                query.scopes(), authorizerTrustedOrigins, Long.MAX_VALUE, this.publicKeyToBlockId);
+        boolean res =
+            world.queryMatch(query, Long.MAX_VALUE, policyTrustedOrigins, symbolTable, budget);
 
-          if (!successful) {
-            errors.add(new FailedCheck.FailedBlock(i + 1, j, symbolTable.formatCheck(check)));
+        budget.check();
+
+        if (res) {
+          if (this.policies.get(i).kind() == Policy.Kind.ALLOW) {
+            return Option.some(Right(i));
+          } else {
+            return Option.some(Left(i));
           }
         }
       }
     }
+    return Option.none();
+  }
 
+  private static Long authorizationResult(
+      Option<Either<Integer, Integer>> policyResult, List<FailedCheck> errors) throws Error {
     if (policyResult.isDefined()) {
       Either<Integer, Integer> e = policyResult.get();
       if (e.isRight()) {
@@ -609,6 +832,131 @@ public final class Authorizer {
     }
   }
 
+  // a check of authorize, with the origin its queries run at and how to report it if it fails
+  private static final class PendingCheck {
+    final org.biscuitsec.biscuit.datalog.Check check;
+    final long origin;
+    final TrustedOrigins trustedOrigins;
+    // -1 for the authorizer's checks
+    final long blockId;
+    final int checkId;
+    // estimated by estimateCost, for the fail fast mode
+    double cost = 0;
+
+    PendingCheck(
+        org.biscuitsec.biscuit.datalog.Check check,
+        long origin,
+        TrustedOrigins trustedOrigins,
+        long blockId,
+        int checkId) {
+      this.check = check;
+      this.origin = origin;
+      this.trustedOrigins = trustedOrigins;
+      this.blockId = blockId;
+      this.checkId = checkId;
+    }
+
+    // the candidate facts all the queries would go through, see JoinPlan#cost
+    void estimateCost(FactSet facts) {
+      this.cost = 0;
+      for (org.biscuitsec.biscuit.datalog.Rule query : this.check.queries()) {
+        this.cost += 1 + query.plan(facts).cost();
+      }
+    }
+
+    FailedCheck failed(SymbolTable symbolTable) {
+      if (this.blockId < 0) {
+        return new FailedCheck.FailedAuthorizer(this.checkId, symbolTable.formatCheck(this.check));
+      } else {
+        return new FailedCheck.FailedBlock(
+            this.blockId, this.checkId, symbolTable.formatCheck(this.check));
+      }
+    }
+  }
+
+  private boolean evaluate(PendingCheck pending, RunLimits.Budget budget) throws Error {
+    for (org.biscuitsec.biscuit.datalog.Rule query : pending.check.queries()) {
+      TrustedOrigins ruleTrustedOrigins =
+          TrustedOrigins.fromScopes(
+              query.scopes(), pending.trustedOrigins, pending.origin, this.publicKeyToBlockId);
+      boolean res;
+      switch (pending.check.kind()) {
+        case ONE:
+          res = world.queryMatch(query, pending.origin, ruleTrustedOrigins, symbolTable, budget);
+          break;
+        case ALL:
+          res =
+              world.queryMatchAll(query, pending.origin, ruleTrustedOrigins, symbolTable, budget);
+          break;
+        default:
+          throw new RuntimeException("unmapped kind");
+      }
+
+      budget.check();
+
+      if (res) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The results of the checks of an authorization
+   *
+   * <p>without an executor, each check is evaluated when its result is requested, in order. With
+   * one, they are all started at once, and requesting a result waits for it: as the results are
+   * requested in order, the failed checks are listed, and the first error is thrown, as in a
+   * sequential evaluation. The checks share the budget of the authorization.
+   */
+  private final class CheckResults {
+    private final List<FutureTask<Boolean>> futures;
+    private final boolean started;
+
+    CheckResults(List<PendingCheck> pending, RunLimits.Budget budget, Executor executor) {
+      this.futures = new ArrayList<>(pending.size());
+      for (PendingCheck p : pending) {
+        this.futures.add(new FutureTask<>(() -> evaluate(p, budget)));
+      }
+      this.started = executor != null;
+      if (this.started) {
+        for (FutureTask<Boolean> future : this.futures) {
+          executor.execute(future);
+        }
+      }
+    }
+
+    boolean successful(int i) throws Error {
+      FutureTask<Boolean> future = this.futures.get(i);
+      if (!this.started) {
+        future.run();
+      }
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
+        } else if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        } else {
+          throw new Error.InternalError();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new Error.Timeout();
+      }
+    }
+
+    // stops the checks whose result will not be requested, after an error
+    void cancel() {
+      if (this.started) {
+        for (FutureTask<Boolean> future : this.futures) {
+          future.cancel(false);
+        }
+      }
+    }
+  }
+
   public String formatWorld() {
     StringBuilder facts = new StringBuilder();
     for (Map.Entry<Origin, HashSet<org.biscuitsec.biscuit.datalog.Fact>> entry :
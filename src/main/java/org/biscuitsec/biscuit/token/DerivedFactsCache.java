@@ -0,0 +1,65 @@
+package org.biscuitsec.biscuit.token;
+
+import io.vavr.Tuple2;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.biscuitsec.biscuit.datalog.Origin;
+import org.biscuitsec.biscuit.token.builder.Fact;
+
+/**
+ * A bounded cache of the facts generated by the rules of a token from the token's own facts,
+ * shared by the authorizers of different requests
+ *
+ * <p>blocks are immutable and identified by their signature, so the rules of a token always
+ * generate the same facts from the facts of the same token. An authorizer using this cache (see
+ * {@link Authorizer#setDerivedFactsCache}) stores them the first time it authorizes a token, and
+ * the next authorizers of the same token start from them: the token's rules that can only use
+ * the token's facts are not applied again. The facts are stored as builder facts, so that they
+ * can be converted to the symbol table of each authorizer.
+ *
+ * <p>entries are keyed by the signatures of the token's blocks, and the least recently used ones
+ * are evicted beyond the maximum number of entries. This is thread safe.
+ */
+public final class DerivedFactsCache {
+  private final LinkedHashMap<List<ByteBuffer>, List<Tuple2<Origin, Fact>>> entries;
+
+  public DerivedFactsCache(final int maxEntries) {
+    this.entries =
+        new LinkedHashMap<List<ByteBuffer>, List<Tuple2<Origin, Fact>>>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(
+              Map.Entry<List<ByteBuffer>, List<Tuple2<Origin, Fact>>> eldest) {
+            return size() > maxEntries;
+          }
+        };
+  }
+
+  /** Returns the facts generated by the rules of the token, or null if they are not cached */
+  synchronized List<Tuple2<Origin, Fact>> get(UnverifiedBiscuit token) {
+    return this.entries.get(key(token));
+  }
+
+  synchronized void put(UnverifiedBiscuit token, List<Tuple2<Origin, Fact>> facts) {
+    this.entries.put(key(token), facts);
+  }
+
+  public synchronized int size() {
+    return this.entries.size();
+  }
+
+  public synchronized void clear() {
+    this.entries.clear();
+  }
+
+  // the revocation identifiers of a token are the signatures of its blocks
+  private static List<ByteBuffer> key(UnverifiedBiscuit token) {
+    List<ByteBuffer> key = new ArrayList<>(token.revocationIds.size());
+    for (byte[] id : token.revocationIds) {
+      key.add(ByteBuffer.wrap(id));
+    }
+    return key;
+  }
+}
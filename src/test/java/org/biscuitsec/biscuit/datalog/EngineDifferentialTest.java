@@ -0,0 +1,301 @@
+package org.biscuitsec.biscuit.datalog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.vavr.control.Either;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import org.biscuitsec.biscuit.datalog.expressions.Expression;
+import org.biscuitsec.biscuit.datalog.expressions.Op;
+import org.biscuitsec.biscuit.error.Error;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs random Datalog programs with the reference engine and a naive one, and compares the
+ * generated facts and the query results
+ */
+public class EngineDifferentialTest {
+  private static final int PROGRAMS = 300;
+  private static final int DOMAIN = 6;
+  private static final int[] ARITIES = {1, 2, 2, 3};
+  private static final RunLimits LIMITS =
+      new RunLimits(100_000, 1000, Duration.ofSeconds(30));
+
+  @Test
+  public void testRandomPrograms() {
+    final Random random = new Random(42);
+    int failed = 0;
+    for (int i = 0; i < PROGRAMS; i++) {
+      if (compare("program " + i, random, new World(), new NaiveEngine())) {
+        failed += 1;
+      }
+    }
+    // both the failing and the successful runs are compared
+    assertTrue(failed > 0 && failed < PROGRAMS, failed + " failed runs");
+  }
+
+  @Test
+  public void testEmptyBody() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final ArrayList<Op> ops = new ArrayList<>();
+    ops.add(new Op.Value(new Term.Integer(1)));
+    ops.add(new Op.Value(new Term.Integer(2)));
+    ops.add(new Op.Binary(Op.BinaryOp.GreaterThan));
+    final Rule rule =
+        new Rule(
+            new Predicate(syms.insert("ok"), List.of(new Term.Integer(1))),
+            new ArrayList<>(),
+            new ArrayList<>(List.of(new Expression(ops))));
+
+    for (Engine engine : List.of(new World(), new NaiveEngine())) {
+      engine.addRule(0L, new TrustedOrigins(0), rule);
+      engine.run(LIMITS.start(), syms);
+      assertEquals(0, engine.getFacts().size());
+    }
+  }
+
+  /**
+   * Loads the same random program in both engines, runs them and compares the facts they hold,
+   * then the results of random queries
+   *
+   * <p>the expressions can fail, and the reference engine may evaluate the combinations in any
+   * order and stop at the first error, so the errors are compared to all the outcomes given by the
+   * naive engine: a run fails if any combination over the final facts fails, and a query can
+   * return any of the errors of its combinations, or its result if it is decided anyway
+   *
+   * @return true if the run failed
+   */
+  static boolean compare(String name, Random random, Engine reference, NaiveEngine candidate) {
+    final SymbolTable syms = new SymbolTable();
+    final long[] predicates = new long[ARITIES.length];
+    for (int i = 0; i < predicates.length; i++) {
+      predicates[i] = syms.insert("p" + i);
+    }
+    final long[] variables = {syms.insert("x"), syms.insert("y"), syms.insert("z")};
+    final long[] strings = {syms.insert("a"), syms.insert("b"), syms.insert("ab")};
+
+    final int facts = random.nextInt(80);
+    for (int i = 0; i < facts; i++) {
+      final int p = random.nextInt(predicates.length);
+      final List<Term> terms = new ArrayList<>();
+      for (int j = 0; j < ARITIES[p]; j++) {
+        terms.add(randomTerm(random, strings));
+      }
+      final Origin origin = new Origin(random.nextInt(3));
+      final Fact fact = new Fact(new Predicate(predicates[p], terms));
+      reference.addFact(origin, fact);
+      candidate.addFact(origin, fact);
+    }
+    if (random.nextBoolean()) {
+      reference.compact();
+    }
+
+    final int rules = random.nextInt(6);
+    for (int i = 0; i < rules; i++) {
+      final Rule rule = randomRule(random, predicates, variables, strings);
+      final long origin = random.nextInt(3);
+      final TrustedOrigins scope =
+          random.nextBoolean() ? new TrustedOrigins(0, (int) origin) : new TrustedOrigins(0, 1, 2);
+      reference.addRule(origin, scope, rule);
+      candidate.addRule(origin, scope, rule);
+    }
+
+    final Either<Error, Boolean> run = runOutcome(() -> reference.run(LIMITS.start(), syms));
+    assertEquals(
+        run.isLeft(),
+        runOutcome(() -> candidate.run(LIMITS.start(), syms)).isLeft(),
+        name + ": run " + run);
+    if (run.isLeft()) {
+      return true;
+    }
+    assertEquals(reference.getFacts(), candidate.getFacts(), name + ": facts");
+    if (random.nextBoolean()) {
+      reference.compact();
+    }
+
+    for (int i = 0; i < 4; i++) {
+      final Rule query = randomRule(random, predicates, variables, strings);
+      final TrustedOrigins scope = new TrustedOrigins(0, 1, 2);
+      final NaiveEngine.Results results = candidate.evaluate(query, 0L, scope, syms);
+      final List<Error> errors = results.errors();
+
+      final List<Either<Error, Boolean>> match = failures(errors);
+      if (results.accepted()) {
+        match.add(Either.right(true));
+      } else if (errors.isEmpty()) {
+        match.add(Either.right(false));
+      }
+      assertOneOf(
+          match,
+          outcome(() -> reference.queryMatch(query, 0L, scope, syms, LIMITS.start())),
+          name + ": queryMatch " + syms.formatRule(query));
+
+      final List<Either<Error, Boolean>> matchAll = failures(errors);
+      if (results.outcomes.isEmpty() || results.rejected()) {
+        matchAll.add(Either.right(false));
+      } else if (errors.isEmpty()) {
+        matchAll.add(Either.right(true));
+      }
+      assertOneOf(
+          matchAll,
+          outcome(() -> reference.queryMatchAll(query, 0L, scope, syms, LIMITS.start())),
+          name + ": queryMatchAll " + syms.formatRule(query));
+
+      final List<Either<Error, FactSet>> generated = failures(errors);
+      if (errors.isEmpty()) {
+        generated.add(Either.right(results.generated));
+      }
+      assertOneOf(
+          generated,
+          outcome(() -> reference.queryRule(query, 0L, scope, syms, LIMITS.start())),
+          name + ": queryRule " + syms.formatRule(query));
+    }
+    return false;
+  }
+
+  // mostly small integers, and some integers that overflow, strings and booleans
+  private static Term randomTerm(Random random, long[] strings) {
+    final int kind = random.nextInt(10);
+    if (kind < 6) {
+      return Term.Integer.of(random.nextInt(DOMAIN));
+    } else if (kind < 7) {
+      return Term.Integer.of(Long.MAX_VALUE);
+    } else if (kind < 9) {
+      return new Term.Str(strings[random.nextInt(strings.length)]);
+    } else {
+      return Term.Bool.of(random.nextBoolean());
+    }
+  }
+
+  // a rule with 0 to 3 body predicates, the head only using variables bound by the body, and 0 to
+  // 2 expressions, some of which fail on some terms
+  private static Rule randomRule(
+      Random random, long[] predicates, long[] variables, long[] strings) {
+    final List<Predicate> body = new ArrayList<>();
+    final LinkedHashSet<Long> bound = new LinkedHashSet<>();
+    final int bodySize = random.nextInt(4);
+    for (int i = 0; i < bodySize; i++) {
+      final int p = random.nextInt(predicates.length);
+      final List<Term> terms = new ArrayList<>();
+      for (int j = 0; j < ARITIES[p]; j++) {
+        if (random.nextInt(4) == 0) {
+          terms.add(randomTerm(random, strings));
+        } else {
+          final long variable = variables[random.nextInt(variables.length)];
+          bound.add(variable);
+          terms.add(new Term.Variable(variable));
+        }
+      }
+      body.add(new Predicate(predicates[p], terms));
+    }
+
+    final List<Long> boundList = new ArrayList<>(bound);
+    final int head = random.nextInt(predicates.length);
+    final List<Term> headTerms = new ArrayList<>();
+    for (int j = 0; j < ARITIES[head]; j++) {
+      if (boundList.isEmpty() || random.nextInt(4) == 0) {
+        headTerms.add(randomTerm(random, strings));
+      } else {
+        headTerms.add(new Term.Variable(boundList.get(random.nextInt(boundList.size()))));
+      }
+    }
+
+    final List<Expression> expressions = new ArrayList<>();
+    final int expressionCount = random.nextInt(3);
+    for (int i = 0; i < expressionCount; i++) {
+      final Term operand =
+          boundList.isEmpty()
+              ? randomTerm(random, strings)
+              : new Term.Variable(boundList.get(random.nextInt(boundList.size())));
+      expressions.add(new Expression(randomOps(random, operand, strings)));
+    }
+    return new Rule(new Predicate(predicates[head], headTerms), body, expressions);
+  }
+
+  private static ArrayList<Op> randomOps(Random random, Term operand, long[] strings) {
+    final ArrayList<Op> ops = new ArrayList<>();
+    switch (random.nextInt(6)) {
+      case 0:
+        // $v < c, fails if $v is not an integer
+        ops.add(new Op.Value(operand));
+        ops.add(new Op.Value(Term.Integer.of(random.nextInt(DOMAIN))));
+        ops.add(new Op.Binary(Op.BinaryOp.LessThan));
+        break;
+      case 1:
+        // $v != t, fails if they have different types
+        ops.add(new Op.Value(operand));
+        ops.add(new Op.Value(randomTerm(random, strings)));
+        ops.add(new Op.Binary(Op.BinaryOp.NotEqual));
+        break;
+      case 2:
+        // $v + 1 > c, overflows on the largest integer
+        ops.add(new Op.Value(operand));
+        ops.add(new Op.Value(Term.Integer.of(1)));
+        ops.add(new Op.Binary(Op.BinaryOp.Add));
+        ops.add(new Op.Value(Term.Integer.of(random.nextInt(DOMAIN))));
+        ops.add(new Op.Binary(Op.BinaryOp.GreaterThan));
+        break;
+      case 3:
+        // c / $v == k, fails on a division by zero
+        ops.add(new Op.Value(Term.Integer.of(random.nextInt(DOMAIN))));
+        ops.add(new Op.Value(operand));
+        ops.add(new Op.Binary(Op.BinaryOp.Div));
+        ops.add(new Op.Value(Term.Integer.of(random.nextInt(2))));
+        ops.add(new Op.Binary(Op.BinaryOp.Equal));
+        break;
+      case 4:
+        // $v.starts_with(s), fails if $v is not a string
+        ops.add(new Op.Value(operand));
+        ops.add(new Op.Value(new Term.Str(strings[random.nextInt(strings.length)])));
+        ops.add(new Op.Binary(Op.BinaryOp.Prefix));
+        break;
+      default:
+        // $v, fails if it is not a boolean
+        ops.add(new Op.Value(operand));
+        break;
+    }
+    return ops;
+  }
+
+  // errors are equal if they have the same class, so the outcomes are kept in lists
+  private static <T> List<Either<Error, T>> failures(List<Error> errors) {
+    final List<Either<Error, T>> failures = new ArrayList<>();
+    for (Error error : errors) {
+      failures.add(Either.left(error));
+    }
+    return failures;
+  }
+
+  private static <T> void assertOneOf(
+      List<Either<Error, T>> expected, Either<Error, T> actual, String message) {
+    assertTrue(expected.contains(actual), message + ": " + actual + " not in " + expected);
+  }
+
+  private interface Action<T> {
+    T run() throws Error;
+  }
+
+  private interface VoidAction {
+    void run() throws Error;
+  }
+
+  private static <T> Either<Error, T> outcome(Action<T> action) {
+    try {
+      return Either.right(action.run());
+    } catch (Error error) {
+      return Either.left(error);
+    }
+  }
+
+  private static Either<Error, Boolean> runOutcome(VoidAction action) {
+    return outcome(
+        () -> {
+          action.run();
+          return true;
+        });
+  }
+}
@@ -1,6 +1,7 @@
 package org.biscuitsec.biscuit.datalog;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -128,4 +129,25 @@ public class ExpressionTest {
     assertEquals(
         new Term.Bool(true), e.evaluate(new HashMap<>(), new TemporarySymbolTable(symbolTable)));
   }
+
+  @Test
+  public void testMissingOperand() {
+    SymbolTable symbolTable = new SymbolTable();
+
+    // the division fails and pushes nothing, so the comparison has a single operand
+    Expression e =
+        new Expression(
+            new ArrayList<Op>(
+                Arrays.asList(
+                    new Op.Value(new Term.Integer(1)),
+                    new Op.Value(new Term.Integer(0)),
+                    new Op.Binary(Op.BinaryOp.Div),
+                    new Op.Value(new Term.Integer(1)),
+                    new Op.Binary(Op.BinaryOp.Equal),
+                    new Op.Unary(Op.UnaryOp.Negate))));
+
+    assertThrows(
+        Error.Execution.class,
+        () -> e.evaluate(new HashMap<>(), new TemporarySymbolTable(symbolTable)));
+  }
 }
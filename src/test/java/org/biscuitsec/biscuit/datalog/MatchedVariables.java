@@ -10,6 +10,12 @@ import java.util.Set;
 import org.biscuitsec.biscuit.datalog.expressions.Expression;
 import org.biscuitsec.biscuit.error.Error;
 
+/**
+ * The values bound to the variables of a rule while matching its body, as a map
+ *
+ * <p>the engine binds variables in slot frames instead, see {@link CompiledRule}: this simpler
+ * form is kept for the reference evaluation of {@link NaiveEngine}
+ */
 public final class MatchedVariables implements Serializable {
   private final Map<Long, Optional<Term>> variables;
 
@@ -0,0 +1,294 @@
+package org.biscuitsec.biscuit.datalog;
+
+import io.vavr.Tuple2;
+import io.vavr.control.Either;
+import io.vavr.control.Option;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.biscuitsec.biscuit.error.Error;
+
+/**
+ * A naive Datalog engine, used to cross check the reference engine in differential tests
+ *
+ * <p>it does not use the rule evaluation of the reference engine: each rule is applied by nested
+ * loops, one per body predicate in the body order, over the trusted facts of the same name,
+ * binding the variables in a {@link MatchedVariables}, then the expressions are evaluated in order
+ * once a combination of facts is complete. There is no join planning, filter pushdown, index,
+ * stratification, semi-naive evaluation, incremental run or memoization.
+ *
+ * <p>each iteration applies every rule to all the facts, until an iteration generates no new fact.
+ * The iteration limit counts all the iterations of the run, so the limits should be high enough
+ * for both engines to reach the fixpoint.
+ */
+public final class NaiveEngine implements Engine {
+  private final FactSet facts;
+  private final RuleSet rules;
+
+  public NaiveEngine() {
+    this.facts = new FactSet();
+    this.rules = new RuleSet();
+  }
+
+  private NaiveEngine(NaiveEngine engine) {
+    this.facts = engine.facts.clone();
+    this.rules = engine.rules.clone();
+  }
+
+  /** What a rule gives on every combination of facts matching its body */
+  public static final class Results {
+    /**
+     * For each combination, in the order of the nested loops: whether the expressions are true,
+     * or the error they raised. A rule with an empty body has a single, empty, combination
+     */
+    public final List<Either<Error, Boolean>> outcomes = new ArrayList<>();
+
+    /** The facts generated by the combinations for which the expressions are true */
+    public final FactSet generated = new FactSet();
+
+    public List<Error> errors() {
+      List<Error> errors = new ArrayList<>();
+      for (Either<Error, Boolean> outcome : outcomes) {
+        if (outcome.isLeft()) {
+          errors.add(outcome.getLeft());
+        }
+      }
+      return errors;
+    }
+
+    /** True if the expressions are true for at least one combination */
+    public boolean accepted() {
+      return outcomes.contains(Either.right(true));
+    }
+
+    /** True if the expressions are false for at least one combination */
+    public boolean rejected() {
+      return outcomes.contains(Either.right(false));
+    }
+  }
+
+  /** Applies the rule to all the facts trusted by the scope, without stopping at errors */
+  public Results evaluate(Rule rule, Long origin, TrustedOrigins scope, SymbolTable symbolTable) {
+    // for each body predicate, the trusted facts with the same name and arity
+    final List<List<Tuple2<Origin, Fact>>> candidates = new ArrayList<>();
+    final Set<Long> variables = new HashSet<>();
+    for (Predicate predicate : rule.body()) {
+      final List<Tuple2<Origin, Fact>> facts = new ArrayList<>();
+      for (Map.Entry<Origin, HashSet<Fact>> entry : this.facts.facts().entrySet()) {
+        if (scope.contains(entry.getKey())) {
+          for (Fact fact : entry.getValue()) {
+            if (fact.predicate().name() == predicate.name()
+                && fact.predicate().terms().size() == predicate.terms().size()) {
+              facts.add(new Tuple2<>(entry.getKey(), fact));
+            }
+          }
+        }
+      }
+      candidates.add(facts);
+
+      for (Term term : predicate.terms()) {
+        if (term instanceof Term.Variable) {
+          variables.add(((Term.Variable) term).value());
+        }
+      }
+    }
+
+    final Results results = new Results();
+    combine(
+        rule,
+        0,
+        new MatchedVariables(variables),
+        new Origin(origin),
+        candidates,
+        symbolTable,
+        results);
+    return results;
+  }
+
+  private static void combine(
+      Rule rule,
+      int depth,
+      MatchedVariables variables,
+      Origin origin,
+      List<List<Tuple2<Origin, Fact>>> candidates,
+      SymbolTable symbolTable,
+      Results results) {
+    if (depth == rule.body().size()) {
+      complete(rule, variables, origin, symbolTable, results);
+      return;
+    }
+
+    final Predicate predicate = rule.body().get(depth);
+    for (Tuple2<Origin, Fact> t : candidates.get(depth)) {
+      final MatchedVariables next = variables.clone();
+      if (match(predicate, t._2.predicate(), next)) {
+        combine(rule, depth + 1, next, origin.union(t._1), candidates, symbolTable, results);
+      }
+    }
+  }
+
+  private static boolean match(Predicate predicate, Predicate fact, MatchedVariables variables) {
+    for (int i = 0; i < predicate.terms().size(); i++) {
+      final Term term = predicate.terms().get(i);
+      if (term instanceof Term.Variable) {
+        if (!variables.insert(((Term.Variable) term).value(), fact.terms().get(i))) {
+          return false;
+        }
+      } else if (!term.equals(fact.terms().get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void complete(
+      Rule rule,
+      MatchedVariables variables,
+      Origin origin,
+      SymbolTable symbolTable,
+      Results results) {
+    final Option<Map<Long, Term>> bound;
+    try {
+      bound = variables.checkExpressions(rule.expressions(), symbolTable);
+    } catch (Error error) {
+      results.outcomes.add(Either.left(error));
+      return;
+    }
+    if (bound.isEmpty()) {
+      results.outcomes.add(Either.right(false));
+      return;
+    }
+
+    final List<Term> terms = new ArrayList<>();
+    for (Term term : rule.head().terms()) {
+      terms.add(
+          term instanceof Term.Variable ? bound.get().get(((Term.Variable) term).value()) : term);
+    }
+    results.outcomes.add(Either.right(true));
+    results.generated.add(origin, new Fact(new Predicate(rule.head().name(), terms)));
+  }
+
+  @Override
+  public void addFact(Origin origin, Fact fact) {
+    this.facts.add(origin, fact);
+  }
+
+  @Override
+  public void addRule(Long origin, TrustedOrigins scope, Rule rule) {
+    this.rules.add(origin, scope, rule);
+  }
+
+  @Override
+  public void run(RunLimits.Budget budget, SymbolTable symbolTable) throws Error {
+    final RunLimits limits = budget.limits();
+    int iterations = 0;
+    while (true) {
+      final FactSet newFacts = new FactSet();
+      for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry :
+          this.rules.getRules().entrySet()) {
+        for (Tuple2<Long, Rule> t : entry.getValue()) {
+          final FactSet generated = generated(evaluate(t._2, t._1, entry.getKey(), symbolTable));
+          for (Map.Entry<Origin, HashSet<Fact>> facts : generated.facts().entrySet()) {
+            for (Fact fact : facts.getValue()) {
+              if (!this.facts.contains(facts.getKey(), fact)) {
+                newFacts.add(facts.getKey(), fact);
+              }
+            }
+          }
+        }
+      }
+
+      budget.check();
+      if (newFacts.size() == 0) {
+        return;
+      }
+      this.facts.merge(newFacts);
+
+      if (this.facts.size() >= limits.getMaxFacts()) {
+        throw new Error.TooManyFacts();
+      }
+      iterations += 1;
+      if (iterations >= limits.getMaxIterations()) {
+        throw new Error.TooManyIterations();
+      }
+    }
+  }
+
+  // the generated facts, or the first error
+  private static FactSet generated(Results results) throws Error {
+    final List<Error> errors = results.errors();
+    if (!errors.isEmpty()) {
+      throw errors.get(0);
+    }
+    return results.generated;
+  }
+
+  @Override
+  public FactSet queryRule(
+      Rule rule,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error {
+    return generated(evaluate(rule, origin, scope, symbolTable));
+  }
+
+  // stops at the first combination that matches or fails, in the order of the nested loops
+  @Override
+  public boolean queryMatch(
+      Rule rule,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error {
+    for (Either<Error, Boolean> outcome : evaluate(rule, origin, scope, symbolTable).outcomes) {
+      if (outcome.isLeft()) {
+        throw outcome.getLeft();
+      }
+      if (outcome.get()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // stops at the first combination that does not match or fails, in the order of the nested loops
+  @Override
+  public boolean queryMatchAll(
+      Rule rule,
+      Long origin,
+      TrustedOrigins scope,
+      SymbolTable symbolTable,
+      RunLimits.Budget budget)
+      throws Error {
+    final Results results = evaluate(rule, origin, scope, symbolTable);
+    for (Either<Error, Boolean> outcome : results.outcomes) {
+      if (outcome.isLeft()) {
+        throw outcome.getLeft();
+      }
+      if (!outcome.get()) {
+        return false;
+      }
+    }
+    return !results.outcomes.isEmpty();
+  }
+
+  @Override
+  public FactSet getFacts() {
+    return this.facts;
+  }
+
+  @Override
+  public RuleSet getRules() {
+    return this.rules;
+  }
+
+  @Override
+  public NaiveEngine copy() {
+    return new NaiveEngine(this);
+  }
+}
@@ -1,13 +1,22 @@
 package org.biscuitsec.biscuit.datalog;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import io.vavr.Tuple2;
+import io.vavr.Tuple3;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.biscuitsec.biscuit.datalog.expressions.Expression;
 import org.biscuitsec.biscuit.datalog.expressions.Op;
@@ -763,4 +772,1193 @@ public class WorldTest {
     }
     assertTrue(res.size() == 0);
   }
+
+  @Test
+  public void testTransitiveClosure() throws Error {
+    final World w = new World();
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+
+    final int nodes = 20;
+    for (int i = 0; i < nodes - 1; i++) {
+      w.addFact(
+          new Origin(0),
+          new Fact(
+              new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+    }
+
+    // path($x, $y) <- edge($x, $y)
+    w.addRule(
+        (long) 0,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>()));
+    // path($x, $z) <- path($x, $y), edge($y, $z)
+    w.addRule(
+        (long) 0,
+        new TrustedOrigins(0),
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>()));
+
+    w.run(new RunLimits(1000, 100, Duration.ofSeconds(10)), syms);
+
+    final HashSet<Fact> expected = new HashSet<>();
+    for (int i = 0; i < nodes; i++) {
+      for (int j = i + 1; j < nodes; j++) {
+        expected.add(
+            new Fact(new Predicate(path, Arrays.asList(new Term.Integer(i), new Term.Integer(j)))));
+      }
+    }
+
+    final Rule query =
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(path, Arrays.asList(x, y))),
+            new ArrayList<>());
+    assertEquals(
+        new FactSet(new Origin(0), expected),
+        w.queryRule(query, (long) 0, new TrustedOrigins(0), syms));
+  }
+
+  @Test
+  public void testPredicateIndex() {
+    final SymbolTable syms = new SymbolTable();
+    final long right = syms.insert("right");
+    final long member = syms.insert("member");
+    final Term file1 = syms.add("file1");
+    final Term read = syms.add("read");
+    final Term var = new Term.Variable(syms.insert("x"));
+
+    final FactSet facts = new FactSet();
+    facts.add(new Origin(0), new Fact(new Predicate(right, Arrays.asList(file1, read))));
+    facts.add(new Origin(1), new Fact(new Predicate(right, Arrays.asList(file1, read))));
+    facts.add(new Origin(0), new Fact(new Predicate(right, Arrays.asList(file1))));
+    facts.add(new Origin(0), new Fact(new Predicate(member, Arrays.asList(file1, read))));
+
+    final Predicate right2 = new Predicate(right, Arrays.asList(var, var));
+    final Predicate right1 = new Predicate(right, Arrays.asList(var));
+    final Predicate member2 = new Predicate(member, Arrays.asList(var, var));
+
+    assertEquals(2, facts.stream(new TrustedOrigins(0, 1), right2).count());
+    assertEquals(1, facts.stream(new TrustedOrigins(0), right2).count());
+    assertEquals(1, facts.stream(new TrustedOrigins(0), right1).count());
+    assertEquals(0, facts.stream(new TrustedOrigins(1), member2).count());
+
+    final FactSet copy = facts.clone();
+    copy.add(new Origin(1), new Fact(new Predicate(member, Arrays.asList(file1, read))));
+    assertEquals(1, copy.stream(new TrustedOrigins(1), member2).count());
+    assertEquals(0, facts.stream(new TrustedOrigins(1), member2).count());
+  }
+
+  @Test
+  public void testColumnIndex() {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+
+    final FactSet facts = new FactSet();
+    for (int i = 0; i < 100; i++) {
+      facts.add(
+          new Origin(i % 2),
+          new Fact(
+              new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+    }
+
+    final Predicate from5 = new Predicate(edge, Arrays.asList(new Term.Integer(5), x));
+    final Predicate to5 = new Predicate(edge, Arrays.asList(x, new Term.Integer(5)));
+    final Predicate from5to6 =
+        new Predicate(edge, Arrays.asList(new Term.Integer(5), new Term.Integer(6)));
+    final Predicate from200 = new Predicate(edge, Arrays.asList(new Term.Integer(200), x));
+    final Predicate any = new Predicate(edge, Arrays.asList(x, y));
+
+    assertEquals(1, facts.stream(new TrustedOrigins(0, 1), from5).count());
+    assertEquals(0, facts.stream(new TrustedOrigins(0), from5).count());
+    assertEquals(1, facts.stream(new TrustedOrigins(0), to5).count());
+    assertEquals(1, facts.stream(new TrustedOrigins(1), from5to6).count());
+    assertEquals(0, facts.stream(new TrustedOrigins(0, 1), from200).count());
+    assertEquals(100, facts.stream(new TrustedOrigins(0, 1), any).count());
+
+    // facts added after the column index was built are visible through it
+    facts.add(
+        new Origin(0),
+        new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(200), new Term.Integer(0)))));
+    assertEquals(1, facts.stream(new TrustedOrigins(0), from200).count());
+
+    final FactSet copy = facts.clone();
+    copy.add(
+        new Origin(1),
+        new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(5), new Term.Integer(7)))));
+    assertEquals(2, copy.stream(new TrustedOrigins(1), from5).count());
+    assertEquals(1, facts.stream(new TrustedOrigins(1), from5).count());
+  }
+
+  @Test
+  public void testJoinPlan() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long big = syms.insert("big");
+    final long small = syms.insert("small");
+    final long both = syms.insert("both");
+    final Term x = new Term.Variable(syms.insert("x"));
+
+    final World w = new World();
+    for (int i = 0; i < 200; i++) {
+      w.addFact(new Origin(0), new Fact(new Predicate(big, Arrays.asList(new Term.Integer(i)))));
+    }
+    w.addFact(new Origin(0), new Fact(new Predicate(small, Arrays.asList(new Term.Integer(42)))));
+    w.addFact(new Origin(0), new Fact(new Predicate(small, Arrays.asList(new Term.Integer(500)))));
+
+    final Rule rule =
+        new Rule(
+            new Predicate(both, Arrays.asList(x)),
+            Arrays.asList(
+                new Predicate(big, Arrays.asList(x)), new Predicate(small, Arrays.asList(x))),
+            new ArrayList<>());
+
+    final JoinPlan plan = w.queryPlan(rule);
+    System.out.println(plan);
+    assertEquals(Arrays.asList(1, 0), plan.order());
+    // 2 small facts, then 200 big facts divided by the selectivity of the bound variable for each
+    assertEquals(2 + 2 * 20, plan.cost(), 1e-9);
+    assertTrue(Double.isNaN(JoinPlan.sourceOrder(2).cost()));
+
+    final FactSet planned = w.queryRule(rule, 0L, new TrustedOrigins(0), syms);
+    final FactSet sourceOrder = new FactSet();
+    rule.apply(
+            JoinPlan.sourceOrder(2),
+            rule.factsSources(w.getFacts(), new TrustedOrigins(0)),
+            0L,
+            syms)
+        .forEach(res -> sourceOrder.add(res.get()._1, res.get()._2));
+    assertEquals(sourceOrder, planned);
+    assertEquals(1, planned.size());
+
+    w.addRule(0L, new TrustedOrigins(0), rule);
+    w.run(new RunLimits(1000, 100, Duration.ofSeconds(10)), syms);
+    final Predicate bothX = new Predicate(both, Arrays.asList(x));
+    assertEquals(1, w.getFacts().stream(new TrustedOrigins(0), bothX).count());
+  }
+
+  @Test
+  public void testSlotBindings() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final Term a = new Term.Variable(syms.insert("a"));
+    final Term b = new Term.Variable(syms.insert("b"));
+    final Term c = new Term.Variable(syms.insert("c"));
+    final Term unbound = new Term.Variable(syms.insert("unbound"));
+
+    final World w = new World();
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 5; j++) {
+        w.addFact(
+            new Origin(0),
+            new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(j)))));
+      }
+    }
+
+    // two hops where the end is greater than the start, and the middle is the constant 2
+    final Rule rule =
+        new Rule(
+            new Predicate(path, Arrays.asList(a, c, syms.add("through"))),
+            Arrays.asList(
+                new Predicate(edge, Arrays.asList(a, b)),
+                new Predicate(edge, Arrays.asList(b, c)),
+                new Predicate(edge, Arrays.asList(b, new Term.Integer(2)))),
+            Arrays.asList(
+                new Expression(
+                    new ArrayList<Op>(
+                        Arrays.asList(
+                            new Op.Value(a),
+                            new Op.Value(c),
+                            new Op.Binary(Op.BinaryOp.LessThan))))));
+
+    final FactSet res = w.queryRule(rule, 2L, new TrustedOrigins(0, 2), syms);
+    // every pair (a, c) with a < c, since every node has an edge to every node
+    assertEquals(10, res.size());
+    assertEquals(10, res.facts().get(new Origin(0).with(2)).size());
+
+    // reading a variable that never gets a value is an execution error
+    final Rule unboundExpression =
+        new Rule(
+            new Predicate(path, Arrays.asList(a, a, a)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(a, b))),
+            Arrays.asList(
+                new Expression(
+                    new ArrayList<Op>(
+                        Arrays.asList(
+                            new Op.Value(unbound),
+                            new Op.Value(b),
+                            new Op.Binary(Op.BinaryOp.LessThan))))));
+    assertThrows(
+        Error.Execution.class,
+        () -> w.queryRule(unboundExpression, 0L, new TrustedOrigins(0), syms));
+  }
+
+  @Test
+  public void testFactSink() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long num = syms.insert("num");
+    final long copy = syms.insert("copy");
+    final Term x = new Term.Variable(syms.insert("x"));
+
+    final FactSet facts = new FactSet();
+    for (int i = 0; i < 10; i++) {
+      facts.add(new Origin(0), new Fact(new Predicate(num, Arrays.asList(new Term.Integer(i)))));
+    }
+    final Rule rule =
+        new Rule(
+            new Predicate(copy, Arrays.asList(x)),
+            Arrays.asList(new Predicate(num, Arrays.asList(x))),
+            new ArrayList<>());
+    final TrustedOrigins scope = new TrustedOrigins(0);
+
+    final ArrayList<Fact> received = new ArrayList<>();
+    final boolean completed =
+        rule.apply(
+            rule.plan(facts),
+            rule.factsSources(facts, scope),
+            0L,
+            syms,
+            (origin, fact) -> {
+              received.add(fact);
+              return received.size() < 3;
+            });
+    assertEquals(false, completed);
+    assertEquals(3, received.size());
+
+    assertTrue(rule.findMatch(facts, 0L, scope, syms));
+    assertTrue(rule.checkMatchAll(facts, scope, syms));
+    assertEquals(
+        10, rule.apply(rule.plan(facts), rule.factsSources(facts, scope), 0L, syms).count());
+  }
+
+  @Test
+  public void testOriginBitset() {
+    final Origin authorizer = Origin.authorizer();
+    final Origin block0 = new Origin(0);
+    final Origin block100 = new Origin(100);
+    final Origin all = block0.union(block100).with(Long.MAX_VALUE).with(62).with(63);
+
+    assertEquals(
+        Arrays.asList(0L, 62L, 63L, 100L, Long.MAX_VALUE), new ArrayList<>(all.blockIds()));
+    assertTrue(all.containsAll(block100));
+    assertTrue(all.containsAll(authorizer));
+    assertEquals(false, block0.containsAll(authorizer));
+    assertEquals(false, block100.containsAll(new Origin(101)));
+    assertEquals(block0.with(Long.MAX_VALUE), authorizer.with(0));
+    assertTrue(authorizer == Origin.authorizer());
+
+    final TrustedOrigins trusted = TrustedOrigins.defaultOrigins();
+    assertTrue(trusted.contains(authorizer));
+    assertTrue(trusted.contains(block0.union(authorizer)));
+    assertEquals(false, trusted.contains(block0.with(1)));
+    assertEquals(new TrustedOrigins(0, 1), new TrustedOrigins(1, 0));
+  }
+
+  @Test
+  public void testOriginLargeBlockIds() {
+    final long large = 1L << 40;
+    final Origin origin = Origin.of(large).with(5000).with(4000).with(1).with(Long.MAX_VALUE);
+
+    assertEquals(
+        Arrays.asList(1L, 4000L, 5000L, large, Long.MAX_VALUE), new ArrayList<>(origin.blockIds()));
+    assertTrue(origin.containsAll(Origin.of(large).with(4000)));
+    assertEquals(false, origin.containsAll(Origin.of(large + 1)));
+    assertEquals(false, Origin.of(large).containsAll(Origin.of(5000).with(large)));
+    assertEquals(Origin.of(5000).with(large), Origin.of(large).union(new Origin(5000)));
+    assertEquals(Origin.of(large).with(5000).hashCode(), Origin.of(5000).with(large).hashCode());
+    assertTrue(new TrustedOrigins(0, Integer.MAX_VALUE).contains(new Origin(Integer.MAX_VALUE)));
+  }
+
+  @Test
+  public void testStrata() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+
+    final World w = new World();
+    final TrustedOrigins scope = new TrustedOrigins(0);
+    final Predicate step0 = new Predicate(syms.insert("step0"), Arrays.asList(syms.add("a")));
+    w.addFact(new Origin(0), new Fact(step0));
+    // a chain of 5 non recursive rules: step1($x) <- step0($x), etc
+    for (int i = 1; i <= 5; i++) {
+      w.addRule(
+          0L,
+          scope,
+          new Rule(
+              new Predicate(syms.insert("step" + i), Arrays.asList(x)),
+              Arrays.asList(new Predicate(syms.insert("step" + (i - 1)), Arrays.asList(x))),
+              new ArrayList<>()));
+    }
+    // a recursive stratum depending on the last step of the chain
+    w.addRule(
+        0L,
+        scope,
+        new Rule(
+            new Predicate(edge, Arrays.asList(x, x)),
+            Arrays.asList(new Predicate(syms.insert("step5"), Arrays.asList(x))),
+            new ArrayList<>()));
+    w.addRule(
+        0L,
+        scope,
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>()));
+    w.addRule(
+        0L,
+        scope,
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>()));
+
+    final List<List<RuleSet.Stratum>> layers = w.getRules().layers();
+    assertEquals(8, layers.size());
+    for (int i = 0; i < 7; i++) {
+      assertEquals(1, layers.get(i).size());
+      assertEquals(false, layers.get(i).get(0).isRecursive());
+    }
+    assertEquals(true, layers.get(7).get(0).isRecursive());
+    assertEquals(1, layers.get(7).get(0).rules().size());
+
+    // the iteration limit counts the iterations of all the layers, including the chain
+    assertThrows(
+        Error.TooManyIterations.class,
+        () -> w.copy().run(new RunLimits(1000, 2, Duration.ofSeconds(10)), syms));
+    w.run(new RunLimits(1000, 100, Duration.ofSeconds(10)), syms);
+    final Predicate pathXY = new Predicate(path, Arrays.asList(x, y));
+    assertEquals(1, w.getFacts().stream(scope, pathXY).count());
+  }
+
+  @Test
+  public void testParallelRun() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final long linked = syms.insert("linked");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+
+    final World sequential = new World();
+    for (int i = 0; i < 30; i++) {
+      sequential.addFact(
+          new Origin(i % 3),
+          new Fact(
+              new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+    }
+    final TrustedOrigins scope = new TrustedOrigins(0, 1, 2);
+    sequential.addRule(
+        0L,
+        scope,
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>()));
+    sequential.addRule(
+        1L,
+        scope,
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>()));
+    sequential.addRule(
+        2L,
+        new TrustedOrigins(0, 2),
+        new Rule(
+            new Predicate(linked, Arrays.asList(y, x)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>()));
+    final World parallel = new World(sequential);
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      sequential.run(new RunLimits(10000, 100, Duration.ofSeconds(10)), syms);
+      parallel.run(new RunLimits(10000, 100, Duration.ofSeconds(10), pool), syms);
+    } finally {
+      pool.shutdown();
+    }
+
+    assertEquals(sequential.getFacts(), parallel.getFacts());
+    final Predicate pathXY = new Predicate(path, Arrays.asList(x, y));
+    assertEquals(465, parallel.getFacts().stream(scope, pathXY).map(t -> t._2).distinct().count());
+  }
+
+  @Test
+  public void testIncrementalRun() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final long reachable = syms.insert("reachable");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+    final TrustedOrigins scope = new TrustedOrigins(0, 1);
+    final RunLimits limits = new RunLimits(1000, 100, Duration.ofSeconds(10));
+
+    final Rule base =
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>());
+    final Rule recursive =
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>());
+    final Rule fromZero =
+        new Rule(
+            new Predicate(reachable, Arrays.asList(y)),
+            Arrays.asList(new Predicate(path, Arrays.asList(new Term.Integer(0), y))),
+            new ArrayList<>());
+
+    final World incremental = new World();
+    final World full = new World();
+    for (World w : Arrays.asList(incremental, full)) {
+      for (int i = 0; i < 5; i++) {
+        w.addFact(new Origin(0), edgeFact(edge, i, i + 1));
+        w.addFact(new Origin(0), edgeFact(edge, i + 10, i + 11));
+      }
+      w.addRule(0L, scope, base);
+      w.addRule(0L, scope, recursive);
+    }
+    incremental.run(limits, syms);
+
+    // joins the two chains, and adds a rule using the result
+    for (World w : Arrays.asList(incremental, full)) {
+      w.addFact(new Origin(1), edgeFact(edge, 5, 10));
+      w.addRule(1L, scope, fromZero);
+    }
+    incremental.run(limits, syms);
+    full.run(limits, syms);
+
+    assertEquals(full.getFacts(), incremental.getFacts());
+    final Predicate reachableY = new Predicate(reachable, Arrays.asList(y));
+    // 1 to 5, then 10 to 15
+    assertEquals(11, incremental.getFacts().stream(scope, reachableY).count());
+
+    // nothing new: the run does not change anything
+    incremental.run(limits, syms);
+    assertEquals(full.getFacts(), incremental.getFacts());
+  }
+
+  @Test
+  public void testCloneSharesFacts() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+    final TrustedOrigins scope = new TrustedOrigins(0, 1);
+    final RunLimits limits = new RunLimits(1000, 100, Duration.ofSeconds(10));
+
+    final World template = new World();
+    for (int i = 0; i < 5; i++) {
+      template.addFact(new Origin(0), edgeFact(edge, i, i + 1));
+    }
+    template.addRule(
+        0L,
+        scope,
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>()));
+    template.run(limits, syms);
+    final FactSet before = template.getFacts().clone();
+
+    // each clone adds its own facts and rules on top of the shared ones
+    World previous = template;
+    for (int i = 0; i < 12; i++) {
+      final World request = new World(previous);
+      request.addFact(new Origin(1), edgeFact(edge, 5 + i, 6 + i));
+      request.addRule(
+          1L,
+          scope,
+          new Rule(
+              new Predicate(path, Arrays.asList(x, z)),
+              Arrays.asList(
+                  new Predicate(path, Arrays.asList(x, y)),
+                  new Predicate(edge, Arrays.asList(y, z))),
+              new ArrayList<>()));
+      request.run(limits, syms);
+
+      final Predicate pathXY = new Predicate(path, Arrays.asList(x, y));
+      final int nodes = 7 + i;
+      assertEquals(
+          nodes * (nodes - 1) / 2,
+          request.getFacts().stream(scope, pathXY).map(t -> t._2).distinct().count());
+      assertEquals(request.getFacts(), new World(request).getFacts());
+      previous = request;
+    }
+
+    assertEquals(before, template.getFacts());
+    assertEquals(1, template.getRules().getRules().get(scope).size());
+  }
+
+  @Test
+  public void testJoinBudget() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long node = syms.insert("node");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+    final TrustedOrigins scope = new TrustedOrigins(0);
+
+    final World w = new World();
+    for (int i = 0; i < 300; i++) {
+      w.addFact(new Origin(0), new Fact(new Predicate(node, Arrays.asList(new Term.Integer(i)))));
+    }
+    // 27 million combinations, none of them matching the expression
+    final Rule query =
+        new Rule(
+            new Predicate(node, Arrays.asList(x)),
+            Arrays.asList(
+                new Predicate(node, Arrays.asList(x)),
+                new Predicate(node, Arrays.asList(y)),
+                new Predicate(node, Arrays.asList(z))),
+            Arrays.asList(
+                new Expression(
+                    new ArrayList<>(
+                        Arrays.asList(
+                            new Op.Value(x),
+                            new Op.Value(y),
+                            new Op.Binary(Op.BinaryOp.Add),
+                            new Op.Value(z),
+                            new Op.Binary(Op.BinaryOp.Add),
+                            new Op.Value(new Term.Integer(-1)),
+                            new Op.Binary(Op.BinaryOp.Equal))))));
+
+    final RunLimits candidates =
+        new RunLimits(1000, 100, Duration.ofSeconds(10), null, 100_000, null);
+    assertThrows(
+        Error.TooManyJoinCandidates.class,
+        () -> w.queryMatch(query, 0L, scope, syms, candidates.start()));
+
+    final long start = System.nanoTime();
+    assertThrows(
+        Error.Timeout.class,
+        () -> w.queryMatch(query, 0L, scope, syms, new RunLimits().start()));
+    assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(1)) < 0);
+
+    final CancellationToken token = new CancellationToken();
+    token.cancel();
+    final RunLimits cancelled =
+        new RunLimits(1000, 100, Duration.ofSeconds(10), null, Long.MAX_VALUE, token);
+    assertThrows(
+        Error.Cancelled.class, () -> w.queryMatch(query, 0L, scope, syms, cancelled.start()));
+  }
+
+  @Test
+  public void testExistenceQueries() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long name = syms.insert("name");
+    final long query = syms.insert("query");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final TrustedOrigins scope = new TrustedOrigins(0);
+
+    final World w = new World();
+    for (String n : Arrays.asList("a", "b", "c")) {
+      w.addFact(new Origin(0), new Fact(new Predicate(name, Arrays.asList(syms.add(n)))));
+    }
+
+    // each binding concatenates strings, creating temporary symbols
+    final Function<String, Rule> notSuffixed =
+        suffixed ->
+            new Rule(
+                new Predicate(query, new ArrayList<>()),
+                Arrays.asList(new Predicate(name, Arrays.asList(x))),
+                Arrays.asList(
+                    new Expression(
+                        new ArrayList<>(
+                            Arrays.asList(
+                                new Op.Value(x),
+                                new Op.Value(syms.add("!")),
+                                new Op.Binary(Op.BinaryOp.Add),
+                                new Op.Value(syms.add(suffixed)),
+                                new Op.Binary(Op.BinaryOp.NotEqual))))));
+    assertTrue(w.queryMatchAll(notSuffixed.apply("d!"), scope, syms));
+    assertFalse(w.queryMatchAll(notSuffixed.apply("c!"), scope, syms));
+    assertTrue(w.queryMatch(notSuffixed.apply("c!"), 0L, scope, syms));
+
+    // the head is not built, but an unbound head variable is still an error
+    final Rule unbound =
+        new Rule(
+            new Predicate(query, Arrays.asList(y)),
+            Arrays.asList(new Predicate(name, Arrays.asList(x))),
+            new ArrayList<>());
+    assertThrows(Error.InternalError.class, () -> w.queryMatch(unbound, 0L, scope, syms));
+  }
+
+  @Test
+  public void testExpressionPushdown() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long resource = syms.insert("resource");
+    final long right = syms.insert("right");
+    final long other = syms.insert("other");
+    final long query = syms.insert("query");
+    final Term u = new Term.Variable(syms.insert("u"));
+    final Term r = new Term.Variable(syms.insert("r"));
+    final Term op = new Term.Variable(syms.insert("op"));
+    final Term read = syms.add("read");
+    final Term write = syms.add("write");
+    final TrustedOrigins scope = new TrustedOrigins(0);
+
+    final World w = new World();
+    w.addFact(new Origin(0), new Fact(new Predicate(resource, Arrays.asList(syms.add("file")))));
+    for (int i = 0; i < 40; i++) {
+      w.addFact(
+          new Origin(0),
+          new Fact(
+              new Predicate(
+                  right,
+                  Arrays.asList(
+                      new Term.Integer(i), syms.add("file"), i % 4 == 0 ? read : write))));
+    }
+
+    final Rule readers =
+        new Rule(
+            new Predicate(query, Arrays.asList(u)),
+            Arrays.asList(
+                new Predicate(resource, Arrays.asList(r)),
+                new Predicate(right, Arrays.asList(u, r, op))),
+            Arrays.asList(
+                new Expression(
+                    new ArrayList<>(
+                        Arrays.asList(
+                            new Op.Value(op),
+                            new Op.Value(read),
+                            new Op.Binary(Op.BinaryOp.Equal))))));
+    // the right facts are looked up by $op instead of being all enumerated
+    final RunLimits lookupOnly =
+        new RunLimits(1000, 100, Duration.ofSeconds(10), null, 20, null);
+    assertEquals(10, w.queryRule(readers, 0L, scope, syms, lookupOnly.start()).size());
+    assertTrue(w.queryMatch(readers, 0L, scope, syms));
+
+    // comparing a string to an integer fails, the lookup must not skip that fact
+    w.addFact(
+        new Origin(0),
+        new Fact(
+            new Predicate(
+                right,
+                Arrays.asList(new Term.Integer(100), syms.add("file"), new Term.Integer(1)))));
+    assertThrows(Error.Execution.class, () -> w.queryRule(readers, 0L, scope, syms));
+
+    // the expression only uses $u, but fails only if a complete combination exists
+    final Function<Long, Rule> failing =
+        name ->
+            new Rule(
+                new Predicate(query, Arrays.asList(u)),
+                Arrays.asList(
+                    new Predicate(right, Arrays.asList(u, r, op)),
+                    new Predicate(name, Arrays.asList(r))),
+                Arrays.asList(
+                    new Expression(
+                        new ArrayList<>(
+                            Arrays.asList(
+                                new Op.Value(u),
+                                new Op.Value(new Term.Integer(0)),
+                                new Op.Binary(Op.BinaryOp.Div),
+                                new Op.Value(new Term.Integer(1)),
+                                new Op.Binary(Op.BinaryOp.Equal))))));
+    assertFalse(w.queryMatch(failing.apply(other), 0L, scope, syms));
+    assertThrows(
+        Error.Execution.class, () -> w.queryMatch(failing.apply(resource), 0L, scope, syms));
+  }
+
+  @Test
+  public void testInterning() {
+    final Fact a = edgeFact(1, 2, 2000);
+    final Fact b = edgeFact(1, 2, 2000);
+    assertTrue(a != b);
+    assertEquals(a.hashCode(), b.hashCode());
+
+    // the caches are shared and lossy, so only the singletons are certainly the same instance
+    final Fact interned = Interner.fact(a);
+    assertEquals(a, interned);
+    assertEquals(interned, Interner.fact(b));
+    assertTrue(interned.predicate().terms().get(0) == Term.Integer.of(2));
+    assertEquals(new Term.Integer(2000), interned.predicate().terms().get(1));
+
+    assertTrue(Term.Bool.of(true) == Interner.term(new Term.Bool(true)));
+    assertTrue(Term.Integer.of(2) == Interner.term(new Term.Integer(2)));
+    assertTrue(Term.Integer.of(1024) != Term.Integer.of(1024));
+    assertEquals(Term.Integer.of(1024), Term.Integer.of(1024));
+
+    final Term bytes = Interner.term(new Term.Bytes(new byte[] {1, 2, 3}));
+    assertEquals(new Term.Bytes(new byte[] {1, 2, 3}), bytes);
+    assertEquals(bytes, Interner.term(new Term.Bytes(new byte[] {1, 2, 3})));
+  }
+
+  @Test
+  public void testCompactFacts() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final long label = syms.insert("label");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+    final TrustedOrigins scope = new TrustedOrigins(0, 1);
+    final RunLimits limits = new RunLimits(1000, 100, Duration.ofSeconds(10));
+
+    final World template = new World();
+    for (int i = 0; i < 40; i++) {
+      template.addFact(new Origin(0), edgeFact(edge, i, i + 1));
+    }
+    template.addFact(new Origin(1), edgeFact(edge, 0, 1));
+    template.addFact(
+        new Origin(0),
+        new Fact(
+            new Predicate(
+                label,
+                Arrays.asList(new Term.Integer(0), new Term.Bytes(new byte[] {1, 2})))));
+    template.addFact(
+        new Origin(0),
+        new Fact(
+            new Predicate(
+                label,
+                Arrays.asList(
+                    new Term.Str(syms.insert("zero")),
+                    new Term.Set(new HashSet<>(Arrays.asList(new Term.Bool(true))))))));
+    final FactSet before = template.getFacts().clone();
+
+    template.getFacts().compact();
+    assertEquals(before, template.getFacts());
+    assertEquals(before.size(), template.getFacts().size());
+    assertTrue(template.getFacts().contains(new Origin(1), edgeFact(edge, 0, 1)));
+    assertFalse(template.getFacts().contains(new Origin(1), edgeFact(edge, 1, 2)));
+    assertTrue(
+        template
+            .getFacts()
+            .contains(
+                new Origin(0),
+                new Fact(
+                    new Predicate(
+                        label,
+                        Arrays.asList(new Term.Integer(0), new Term.Bytes(new byte[] {1, 2}))))));
+
+    // scans compare the encoded terms, only in the trusted origins
+    assertEquals(
+        1,
+        template
+            .getFacts()
+            .stream(
+                new TrustedOrigins(0),
+                new Predicate(edge, Arrays.asList(new Term.Integer(3), y)))
+            .count());
+    assertEquals(
+        2,
+        template
+            .getFacts()
+            .stream(scope, new Predicate(edge, Arrays.asList(new Term.Integer(0), y)))
+            .count());
+    // a column holding different types is not filtered
+    assertEquals(
+        2,
+        template
+            .getFacts()
+            .stream(scope, new Predicate(label, Arrays.asList(new Term.Integer(0), y)))
+            .count());
+
+    // filtering by origin reads the compacted layer and the facts added on top of it
+    final FactSet layered = template.getFacts().clone();
+    layered.add(new Origin(2), edgeFact(edge, 100, 101));
+    assertEquals(
+        Arrays.asList(new Tuple2<>(new Origin(1), edgeFact(edge, 0, 1))),
+        layered.stream(origin -> origin.equals(new Origin(1))).collect(Collectors.toList()));
+    assertEquals(43, layered.stream(origin -> !origin.equals(new Origin(1))).count());
+    assertEquals(
+        new HashSet<>(Arrays.asList(new PredicateKey(edgeFact(edge, 0, 1).predicate()))),
+        layered.predicates(origin -> !origin.equals(new Origin(0))));
+    assertEquals(2, layered.predicates(origin -> origin.equals(new Origin(0))).size());
+
+    template.addRule(
+        0L,
+        scope,
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>()));
+    template.addRule(
+        0L,
+        scope,
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>()));
+    final World request = new World(template);
+    request.run(limits, syms);
+    assertEquals(
+        41 * 40 / 2,
+        request
+            .getFacts()
+            .stream(scope, new Predicate(path, Arrays.asList(x, y)))
+            .map(t -> t._2)
+            .distinct()
+            .count());
+    // the compacted layer is shared, not modified
+    assertEquals(before, template.getFacts());
+  }
+
+  @Test
+  public void testQueryOnDemand() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final long pair = syms.insert("pair");
+    final long result = syms.insert("result");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+    final TrustedOrigins scope = new TrustedOrigins(0);
+
+    final World world = new World();
+    for (int i = 0; i < 30; i++) {
+      world.addFact(new Origin(0), edgeFact(edge, i, i + 1));
+    }
+    world.addRule(
+        0L,
+        scope,
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>()));
+    world.addRule(
+        0L,
+        scope,
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>()));
+    // unrelated to the query, 900 facts
+    world.addRule(
+        0L,
+        scope,
+        new Rule(
+            new Predicate(pair, Arrays.asList(x, y)),
+            Arrays.asList(
+                new Predicate(edge, Arrays.asList(x, z)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>()));
+
+    final ArrayList<Op> ops = new ArrayList<>();
+    ops.add(new Op.Value(y));
+    ops.add(new Op.Value(new Term.Integer(20)));
+    ops.add(new Op.Binary(Op.BinaryOp.LessThan));
+    final Rule query =
+        new Rule(
+            new Predicate(result, Arrays.asList(y)),
+            Arrays.asList(new Predicate(path, Arrays.asList(new Term.Integer(10), y))),
+            new ArrayList<>(Arrays.asList(new Expression(ops))));
+
+    // the full run derives more facts than allowed, the demand driven one only derives paths from
+    // 10, and does not modify the world
+    final RunLimits limits = new RunLimits(500, 100, Duration.ofSeconds(10));
+    final FactSet onDemand = world.queryRuleOnDemand(query, 0L, scope, syms, limits.start());
+    assertEquals(9, onDemand.size());
+    assertEquals(30, world.getFacts().size());
+    assertThrows(Error.TooManyFacts.class, () -> new World(world).run(limits, syms));
+
+    world.run(new RunLimits(5000, 100, Duration.ofSeconds(10)), syms);
+    assertEquals(world.queryRule(query, 0L, scope, syms), onDemand);
+    assertEquals(
+        onDemand, world.queryRuleOnDemand(query, 0L, scope, syms, RunLimits.Budget.UNLIMITED));
+  }
+
+  @Test
+  public void testScopedViews() {
+    final long edge = 1;
+    final Predicate any =
+        new Predicate(edge, Arrays.asList(new Term.Variable(2), new Term.Variable(3)));
+    final TrustedOrigins authority = new TrustedOrigins(0);
+    final TrustedOrigins both = new TrustedOrigins(0, 1);
+
+    final FactSet facts = new FactSet();
+    facts.add(new Origin(0), edgeFact(edge, 0, 1));
+    facts.add(new Origin(1), edgeFact(edge, 1, 2));
+    facts.add(new Origin(2), edgeFact(edge, 2, 3));
+    assertEquals(1, facts.stream(authority).count());
+    assertEquals(2, facts.stream(both).count());
+    assertEquals(2, facts.stream(both, any).count());
+
+    // the cached views are extended by new origins, and by merges
+    facts.add(new Origin(0).union(new Origin(1)), edgeFact(edge, 3, 4));
+    facts.add(new Origin(0), edgeFact(edge, 4, 5));
+    final FactSet other = new FactSet();
+    other.add(new Origin(1), edgeFact(edge, 5, 6));
+    other.add(new Origin(2), edgeFact(edge, 6, 7));
+    facts.merge(other);
+    assertEquals(2, facts.stream(authority).count());
+    assertEquals(5, facts.stream(both).count());
+    assertEquals(5, facts.stream(both, any).count());
+    assertEquals(2, facts.stream(authority, any).count());
+
+    final FactSet clone = facts.clone();
+    clone.add(new Origin(1), edgeFact(edge, 7, 8));
+    assertEquals(6, clone.stream(both, any).count());
+    assertEquals(5, facts.stream(both, any).count());
+  }
+
+  @Test
+  public void testMemoizedRules() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final long start = syms.insert("start");
+    final long reachable = syms.insert("reachable");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+    final TrustedOrigins scope = TrustedOrigins.defaultOrigins();
+    final RunLimits limits = new RunLimits(1000, 100, Duration.ofSeconds(10));
+
+    final World world = new World();
+    for (int i = 0; i < 5; i++) {
+      world.addFact(new Origin(0), edgeFact(edge, i, i + 1));
+    }
+    world.addFact(
+        Origin.authorizer(), new Fact(new Predicate(start, Arrays.asList(new Term.Integer(2)))));
+    final Rule pathRule =
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>());
+    final Rule transitive =
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>());
+    final Rule reachableRule =
+        new Rule(
+            new Predicate(reachable, Arrays.asList(y)),
+            Arrays.asList(
+                new Predicate(start, Arrays.asList(x)), new Predicate(path, Arrays.asList(x, y))),
+            new ArrayList<>());
+    world.addRule(0L, scope, pathRule);
+    world.addRule(0L, scope, transitive);
+    world.addRule(0L, scope, reachableRule);
+
+    // the path rules only use the token's facts, the reachable rule uses the authorizer's
+    final HashSet<Tuple3<Long, TrustedOrigins, Rule>> closed =
+        world.closedRules(
+            origin -> origin != Long.MAX_VALUE, origin -> !origin.containsAll(Origin.authorizer()));
+    assertEquals(
+        new HashSet<>(
+            Arrays.asList(new Tuple3<>(0L, scope, pathRule), new Tuple3<>(0L, scope, transitive))),
+        closed);
+
+    final World full = new World(world);
+    full.run(limits, syms);
+    final RunLimits budget = new RunLimits(1000, 100, Duration.ofSeconds(10), null, 30, null);
+    assertThrows(Error.TooManyJoinCandidates.class, () -> new World(world).run(budget, syms));
+
+    // memoized facts: the path rules are not applied again, the reachable rule still is
+    final FactSet memoized = new FactSet();
+    for (int i = 0; i < 6; i++) {
+      for (int j = i + 1; j < 6; j++) {
+        memoized.add(
+            new Origin(0),
+            new Fact(
+                new Predicate(path, Arrays.asList(new Term.Integer(i), new Term.Integer(j)))));
+      }
+    }
+    world.addMemoized(memoized, closed);
+    world.run(budget, syms);
+    assertEquals(full.getFacts(), world.getFacts());
+    assertTrue(world.isSaturated());
+  }
+
+  @Test
+  public void testRuleStats() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final Term x = new Term.Variable(syms.insert("x"));
+    final Term y = new Term.Variable(syms.insert("y"));
+    final Term z = new Term.Variable(syms.insert("z"));
+    final TrustedOrigins scope = new TrustedOrigins(0, 1);
+
+    final World world = new World();
+    for (int i = 0; i < 4; i++) {
+      world.addFact(new Origin(0), edgeFact(edge, i, i + 1));
+    }
+    final Rule pathRule =
+        new Rule(
+            new Predicate(path, Arrays.asList(x, y)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(x, y))),
+            new ArrayList<>());
+    final ArrayList<Op> ops = new ArrayList<>();
+    ops.add(new Op.Value(x));
+    ops.add(new Op.Value(z));
+    ops.add(new Op.Binary(Op.BinaryOp.LessThan));
+    final Rule transitive =
+        new Rule(
+            new Predicate(path, Arrays.asList(x, z)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+            new ArrayList<>(Arrays.asList(new Expression(ops))));
+    world.addRule(0L, scope, pathRule);
+    world.addRule(1L, scope, transitive);
+
+    final RuleStats stats = new RuleStats();
+    final RunLimits limits = new RunLimits(1000, 100, Duration.ofSeconds(10));
+    final RunLimits.Budget budget = limits.start(stats);
+    world.run(budget, syms);
+    final Rule query =
+        new Rule(
+            new Predicate(path, Arrays.asList(x)),
+            Arrays.asList(new Predicate(path, Arrays.asList(new Term.Integer(0), x))),
+            new ArrayList<>());
+    assertTrue(world.queryMatch(query, 1L, scope, syms, budget));
+    assertTrue(world.queryMatchAll(query, 1L, scope, syms, budget));
+
+    final Map<Long, List<RuleStats.Entry>> byOrigin = stats.byOrigin();
+    assertEquals(1, byOrigin.get(0L).size());
+    final RuleStats.Entry pathStats = byOrigin.get(0L).get(0);
+    assertEquals(RuleStats.Kind.RULE, pathStats.kind());
+    assertEquals(1, pathStats.invocations());
+    assertEquals(4, pathStats.candidates());
+    assertEquals(4, pathStats.facts());
+    assertEquals(0, pathStats.expressionEvaluations());
+
+    // 10 paths in total, 6 from the transitive rule
+    long transitiveFacts = 0;
+    long evaluations = 0;
+    long queries = 0;
+    for (RuleStats.Entry entry : byOrigin.get(1L)) {
+      if (entry.kind() == RuleStats.Kind.RULE) {
+        assertEquals(transitive, entry.rule());
+        transitiveFacts += entry.facts();
+        evaluations += entry.expressionEvaluations();
+        assertEquals(entry.facts(), entry.bindings());
+      } else {
+        assertEquals(query, entry.rule());
+        queries += entry.invocations();
+      }
+    }
+    assertEquals(6, transitiveFacts);
+    assertEquals(6, evaluations);
+    assertEquals(2, queries);
+    assertTrue(stats.entries().stream().allMatch(e -> e.nanos() >= 0));
+
+    // no statistics without a collector
+    stats.clear();
+    world.queryMatch(query, 1L, scope, syms, limits.start());
+    assertTrue(stats.entries().isEmpty());
+
+    // the other rules and queries are only counted once the entries are full
+    final RuleStats bounded = new RuleStats(1);
+    final RunLimits.Budget boundedBudget = limits.start(bounded);
+    world.queryMatch(query, 1L, scope, syms, boundedBudget);
+    world.queryMatch(query, 0L, scope, syms, boundedBudget);
+    world.queryMatch(query, 0L, scope, syms, boundedBudget);
+    assertEquals(1, bounded.entries().size());
+    assertEquals(1L, (long) bounded.entries().get(0).origin());
+    assertEquals(2, bounded.dropped());
+  }
+
+  @Test
+  public void testTrace() throws Error {
+    final SymbolTable syms = new SymbolTable();
+    final long edge = syms.insert("edge");
+    final long path = syms.insert("path");
+    final long x = syms.insert("x");
+    final Term vx = new Term.Variable(x);
+    final Term vy = new Term.Variable(syms.insert("y"));
+    final Term vz = new Term.Variable(syms.insert("z"));
+    final TrustedOrigins scope = new TrustedOrigins(0, 1);
+
+    final World world = new World();
+    for (int i = 0; i < 3; i++) {
+      world.addFact(new Origin(0), edgeFact(edge, i, i + 1));
+    }
+    final Rule pathRule =
+        new Rule(
+            new Predicate(path, Arrays.asList(vx, vy)),
+            Arrays.asList(new Predicate(edge, Arrays.asList(vx, vy))),
+            new ArrayList<>());
+    final Rule transitive =
+        new Rule(
+            new Predicate(path, Arrays.asList(vx, vz)),
+            Arrays.asList(
+                new Predicate(path, Arrays.asList(vx, vy)),
+                new Predicate(edge, Arrays.asList(vy, vz))),
+            new ArrayList<>());
+    world.addRule(0L, scope, pathRule);
+    world.addRule(1L, scope, transitive);
+
+    final Trace trace = new Trace(64);
+    final RunLimits.Budget budget =
+        new RunLimits(1000, 100, Duration.ofSeconds(10)).start(null, trace);
+    world.run(budget, syms);
+
+    // path(0, 3) <- path(0, 2), edge(2, 3), and path(0, 2) <- path(0, 1), edge(1, 2)
+    final Origin derived = new Origin(0).with(1);
+    final Fact path03 =
+        new Fact(new Predicate(path, Arrays.asList(new Term.Integer(0), new Term.Integer(3))));
+    final Trace.Derivation derivation = trace.derivation(derived, path03);
+    assertEquals(transitive, derivation.rule());
+    assertEquals(Long.valueOf(1), derivation.ruleOrigin());
+    assertEquals(2, derivation.premises().size());
+    assertEquals(derived, derivation.premises().get(0)._1);
+    assertEquals(edgeFact(edge, 2, 3), derivation.premises().get(1)._2);
+    assertEquals(6, trace.derivations().size());
+
+    final ArrayList<Op> ops = new ArrayList<>();
+    ops.add(new Op.Value(vx));
+    ops.add(new Op.Value(new Term.Integer(3)));
+    ops.add(new Op.Binary(Op.BinaryOp.Equal));
+    final Rule query =
+        new Rule(
+            new Predicate(path, Arrays.asList(vx)),
+            Arrays.asList(new Predicate(path, Arrays.asList(new Term.Integer(0), vx))),
+            new ArrayList<>(Arrays.asList(new Expression(ops))));
+    assertTrue(world.queryMatch(query, 1L, scope, syms, budget));
+    // fails for path(0, 1), the first path found
+    assertFalse(world.queryMatchAll(query, 1L, scope, syms, budget));
+
+    final List<Trace.QueryResult> results = trace.queryResults();
+    assertEquals(2, results.size());
+    assertTrue(results.get(0).matched());
+    assertEquals(new Term.Integer(3), results.get(0).bindings().get(x));
+    assertEquals(path03, results.get(0).facts().get(0)._2);
+    assertFalse(results.get(1).matched());
+    assertEquals(1, results.get(1).bindings().size());
+    assertTrue(trace.format(syms).contains("path(0, 3)"));
+
+    // the oldest events are overwritten
+    final Trace small = new Trace(2);
+    world.queryMatch(query, 1L, scope, syms, new RunLimits().start(null, small));
+    world.queryMatch(query, 1L, scope, syms, new RunLimits().start(null, small));
+    world.queryMatch(query, 1L, scope, syms, new RunLimits().start(null, small));
+    assertEquals(3, small.recorded());
+    assertEquals(2, small.queryResults().size());
+  }
+
+  private static Fact edgeFact(long edge, int from, int to) {
+    return new Fact(
+        new Predicate(edge, Arrays.asList(new Term.Integer(from), new Term.Integer(to))));
+  }
 }
@@ -2,16 +2,23 @@ package org.biscuitsec.biscuit.token;
 
 import static org.biscuitsec.biscuit.token.builder.Utils.constrainedRule;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import biscuit.format.schema.Schema;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.biscuitsec.biscuit.crypto.KeyPair;
+import org.biscuitsec.biscuit.datalog.RunLimits;
 import org.biscuitsec.biscuit.error.Error;
 import org.biscuitsec.biscuit.error.Error.Parser;
+import org.biscuitsec.biscuit.error.FailedCheck;
+import org.biscuitsec.biscuit.error.LogicError;
 import org.biscuitsec.biscuit.token.builder.Expression;
 import org.biscuitsec.biscuit.token.builder.Term;
 import org.junit.jupiter.api.Test;
@@ -73,6 +80,147 @@ public class AuthorizerTest {
         ((Term.Set) permsTerm).getValue());
   }
 
+  @Test
+  public void testDerivedFactsCache() throws Exception {
+    KeyPair keypair = KeyPair.generate(Schema.PublicKey.Algorithm.Ed25519, new SecureRandom());
+
+    Biscuit token =
+        Biscuit.builder(keypair)
+            .addAuthorityFact("owner(\"alice\", \"file1\")")
+            .addAuthorityRule("right($u, $f, \"read\") <- owner($u, $f)")
+            .addAuthorityRule("can_read($u, $f) <- user($u), right($u, $f, \"read\")")
+            .build();
+    DerivedFactsCache cache = new DerivedFactsCache(16);
+    RunLimits limits = new RunLimits(1000, 100, Duration.ofSeconds(10));
+
+    for (int i = 0; i < 2; i++) {
+      Authorizer authorizer =
+          Biscuit.fromBase64Url(token.serializeBase64Url(), keypair.getPublicKey())
+              .authorizer()
+              .setDerivedFactsCache(cache);
+      authorizer.addFact("user(\"alice\")");
+      authorizer.addPolicy("allow if can_read(\"alice\", \"file1\")");
+      assertEquals(Long.valueOf(0), authorizer.authorize(limits));
+      assertEquals(1, cache.size());
+      assertEquals(
+          1, authorizer.query("data($f) <- right(\"alice\", $f, \"read\")", limits).size());
+    }
+  }
+
+  @Test
+  public void testParallelChecks() throws Exception {
+    SecureRandom rng = new SecureRandom();
+    KeyPair root = KeyPair.generate(Schema.PublicKey.Algorithm.Ed25519, rng);
+
+    Biscuit token =
+        Biscuit.builder(rng, root)
+            .addAuthorityFact("right(\"file1\", \"read\")")
+            .addAuthorityCheck("check if operation(\"read\")")
+            .build();
+    for (int i = 0; i < 8; i++) {
+      org.biscuitsec.biscuit.token.builder.Block block =
+          new org.biscuitsec.biscuit.token.builder.Block();
+      block.addCheck("check if resource(\"file1\")");
+      block.addCheck("check if time($t), $t < " + i);
+      KeyPair next = KeyPair.generate(root.getPublicKey().getAlgorithm(), rng);
+      token = token.attenuate(rng, next, block);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      RunLimits limits = new RunLimits(1000, 100, Duration.ofSeconds(10), executor);
+      List<Error.FailedLogic> errors = new ArrayList<>();
+      for (boolean parallel : List.of(false, true)) {
+        Authorizer authorizer = token.authorizer().setParallelChecks(parallel);
+        authorizer.addFact("resource(\"file1\")");
+        authorizer.addFact("operation(\"read\")");
+        authorizer.addFact("time(4)");
+        authorizer.addCheck("check if right(\"file1\", \"write\")");
+        authorizer.addPolicy("allow if true");
+        authorizer.addPolicy("deny if unreached(true)");
+        errors.add(assertThrows(Error.FailedLogic.class, () -> authorizer.authorize(limits)));
+        // sequentially, the policies after the matching one are not converted
+        assertEquals(parallel, authorizer.getSymbolTable().get("unreached").isDefined());
+      }
+      assertEquals(errors.get(0), errors.get(1));
+      // the authorizer check, then the second check of the first five blocks
+      LogicError error = errors.get(1).error;
+      assertEquals(6, ((LogicError.Unauthorized) error).errors.size());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailFast() throws Exception {
+    SecureRandom rng = new SecureRandom();
+    KeyPair root = KeyPair.generate(Schema.PublicKey.Algorithm.Ed25519, rng);
+
+    org.biscuitsec.biscuit.token.builder.Biscuit builder = Biscuit.builder(rng, root);
+    for (int i = 0; i < 50; i++) {
+      builder.addAuthorityFact("value(" + i + ")");
+    }
+    Biscuit token = builder.addAuthorityFact("owner(\"alice\")").build();
+    // an expensive join in the first block, a lookup in the second one, both failing
+    for (String check :
+        List.of("check if value($x), value($y), $x > $y + 100", "check if owner(\"bob\")")) {
+      org.biscuitsec.biscuit.token.builder.Block block =
+          new org.biscuitsec.biscuit.token.builder.Block();
+      block.addCheck(check);
+      KeyPair next = KeyPair.generate(root.getPublicKey().getAlgorithm(), rng);
+      token = token.attenuate(rng, next, block);
+    }
+
+    RunLimits limits = new RunLimits(1000, 100, Duration.ofSeconds(10));
+    Authorizer full = token.authorizer();
+    full.addPolicy("allow if true");
+    Error.FailedLogic fullError =
+        assertThrows(Error.FailedLogic.class, () -> full.authorize(limits));
+    assertEquals(2, ((LogicError.Unauthorized) fullError.error).errors.size());
+
+    // only the cheapest failed check is evaluated and reported
+    Authorizer failFast = token.authorizer().setFailFast(true);
+    failFast.addPolicy("allow if true");
+    Error.FailedLogic error =
+        assertThrows(Error.FailedLogic.class, () -> failFast.authorize(limits));
+    List<FailedCheck> errors = ((LogicError.Unauthorized) error.error).errors;
+    assertEquals(1, errors.size());
+    assertEquals(2, ((FailedCheck.FailedBlock) errors.get(0)).blockId);
+
+    // a matching deny policy stops the authorization before the checks
+    Authorizer denied = token.authorizer().setFailFast(true);
+    denied.addPolicy("deny if owner(\"alice\")");
+    denied.addPolicy("allow if true");
+    assertEquals(
+        new Error.FailedLogic(
+            new LogicError.Unauthorized(new LogicError.MatchedPolicy.Deny(0), new ArrayList<>())),
+        assertThrows(Error.FailedLogic.class, () -> denied.authorize(limits)));
+  }
+
+  @Test
+  public void testCompactFacts() throws Exception {
+    RunLimits limits = new RunLimits(1000, 100, Duration.ofSeconds(10));
+    Authorizer preloaded = new Authorizer();
+    for (int i = 0; i < 100; i++) {
+      preloaded.addFact("right(\"file" + i + "\", \"read\")");
+    }
+    preloaded.addRule("can_read($f) <- resource($f), right($f, \"read\")");
+    preloaded.addPolicy("allow if can_read($f)");
+    preloaded.compactFacts();
+
+    for (String resource : List.of("file1", "file42")) {
+      Authorizer authorizer = preloaded.clone();
+      authorizer.addFact("resource(\"" + resource + "\")");
+      assertEquals(Long.valueOf(0), authorizer.authorize(limits));
+      assertEquals(1, authorizer.query("data($f) <- can_read($f)", limits).size());
+    }
+    Authorizer denied = preloaded.clone();
+    denied.addFact("resource(\"file100\")");
+    assertThrows(Error.FailedLogic.class, () -> denied.authorize(limits));
+    // the compacted facts are shared by the clones, not modified
+    assertEquals(100, preloaded.query("data($f) <- right($f, \"read\")", limits).size());
+  }
+
   private static Term queryFirstResult(Authorizer authorizer, String query) throws Error {
     return authorizer.query(query).iterator().next().terms().get(0);
   }
@@ -29,6 +29,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.biscuitsec.biscuit.crypto.KeyPair;
 import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.datalog.NaiveEngine;
 import org.biscuitsec.biscuit.datalog.Rule;
 import org.biscuitsec.biscuit.datalog.RunLimits;
 import org.biscuitsec.biscuit.datalog.SymbolTable;
@@ -54,6 +55,95 @@ class SamplesTest {
     return sample.testcases.stream().map(t -> processTestcase(t, publicKey, keyPair));
   }
 
+  /**
+   * Authorizes the samples with the reference engine and a naive one, and compares the results and
+   * the generated facts
+   */
+  @TestFactory
+  Stream<DynamicTest> engineDifferentialTest() {
+    InputStream inputStream =
+        Thread.currentThread().getContextClassLoader().getResourceAsStream("samples/samples.json");
+    Gson gson = new Gson();
+    Sample sample =
+        gson.fromJson(new InputStreamReader(new BufferedInputStream(inputStream)), Sample.class);
+    PublicKey publicKey = new PublicKey(Schema.PublicKey.Algorithm.Ed25519, sample.root_public_key);
+    return sample.testcases.stream()
+        .map(
+            t ->
+                DynamicTest.dynamicTest(
+                    t.title + ": " + t.filename, () -> compareEngines(t, publicKey, runLimits)));
+  }
+
+  void compareEngines(final TestCase testCase, final PublicKey publicKey, final RunLimits limits)
+      throws Exception {
+    InputStream inputStream =
+        Thread.currentThread()
+            .getContextClassLoader()
+            .getResourceAsStream("samples/" + testCase.filename);
+    byte[] data = inputStream.readAllBytes();
+    Either<Throwable, Biscuit> token = Try.of(() -> Biscuit.fromBytes(data, publicKey)).toEither();
+    // the tokens that cannot be verified are not authorized
+    if (token.isLeft()) {
+      return;
+    }
+
+    for (Map.Entry<String, JsonElement> validationEntry :
+        testCase.validations.getAsJsonObject().entrySet()) {
+      String[] authorizerCode =
+          validationEntry
+              .getValue()
+              .getAsJsonObject()
+              .getAsJsonPrimitive("authorizer_code")
+              .getAsString()
+              .split(";");
+      // tokens with invalid rules are rejected when the authorizer is made, by both engines
+      Either<Error, Authorizer> referenceAuthorizer =
+          Try.of(() -> Authorizer.make(token.get(), new org.biscuitsec.biscuit.datalog.World()))
+              .toEither()
+              .mapLeft(e -> (Error) e);
+      Either<Error, Authorizer> candidateAuthorizer =
+          Try.of(() -> Authorizer.make(token.get(), new NaiveEngine()))
+              .toEither()
+              .mapLeft(e -> (Error) e);
+      if (referenceAuthorizer.isLeft() || candidateAuthorizer.isLeft()) {
+        assertEquals(
+            referenceAuthorizer.map(a -> true).mapLeft(Error::toJson),
+            candidateAuthorizer.map(a -> true).mapLeft(Error::toJson),
+            validationEntry.getKey());
+        continue;
+      }
+      Authorizer reference = referenceAuthorizer.get();
+      addAuthorizerCode(reference, authorizerCode);
+      Authorizer candidate = candidateAuthorizer.get();
+      addAuthorizerCode(candidate, authorizerCode);
+
+      Either<Error, Long> expected =
+          Try.of(() -> reference.authorize(limits)).toEither().mapLeft(e -> (Error) e);
+      Either<Error, Long> result =
+          Try.of(() -> candidate.authorize(limits)).toEither().mapLeft(e -> (Error) e);
+      assertEquals(
+          expected.mapLeft(Error::toJson), result.mapLeft(Error::toJson), validationEntry.getKey());
+      assertEquals(reference.getFacts(), candidate.getFacts(), validationEntry.getKey());
+    }
+  }
+
+  static void addAuthorizerCode(Authorizer authorizer, String[] code) throws Error {
+    for (String f : code) {
+      f = f.trim();
+      if (!f.isEmpty()) {
+        if (f.startsWith("check if") || f.startsWith("check all")) {
+          authorizer.addCheck(f);
+        } else if (f.startsWith("allow if") || f.startsWith("deny if")) {
+          authorizer.addPolicy(f);
+        } else if (f.startsWith("revocation_id")) {
+          // do nothing
+        } else {
+          authorizer.addFact(f);
+        }
+      }
+    }
+  }
+
   void compareBlocks(KeyPair root, List<Block> sampleBlocks, Biscuit token) throws Error {
     assertEquals(sampleBlocks.size(), 1 + token.blocks.size());
     Option<Biscuit> sampleToken = Option.none();
@@ -207,20 +297,7 @@ class SamplesTest {
 
                           Authorizer authorizer = token.authorizer();
                           System.out.println(token.print());
-                          for (String f : authorizerFacts) {
-                            f = f.trim();
-                            if (!f.isEmpty()) {
-                              if (f.startsWith("check if") || f.startsWith("check all")) {
-                                authorizer.addCheck(f);
-                              } else if (f.startsWith("allow if") || f.startsWith("deny if")) {
-                                authorizer.addPolicy(f);
-                              } else if (f.startsWith("revocation_id")) {
-                                // do nothing
-                              } else {
-                                authorizer.addFact(f);
-                              }
-                            }
-                          }
+                          addAuthorizerCode(authorizer, authorizerFacts);
                           System.out.println(authorizer.formatWorld());
                           try {
                             Long authorizeResult = authorizer.authorize(runLimits);